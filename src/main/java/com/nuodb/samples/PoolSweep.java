@@ -0,0 +1,151 @@
+package com.nuodb.samples;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import com.nuodb.samples.jdbc.LatencyRecorder;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Stand-alone harness comparing connection pools. For every combination of
+ * pool size and number of client threads it runs a query repeatedly for a
+ * fixed time and reports throughput and the time spent waiting for a
+ * connection.
+ * <p>
+ * Usage (from {@code docker/} after {@code mvn package}):
+ *
+ * <pre>
+ * java -cp nuodb-docker-java-demo-1.0.0.RELEASE.jar -Dloader.main=com.nuodb.samples.PoolSweep \
+ *      org.springframework.boot.loader.PropertiesLauncher [username password nuodb-db]
+ * </pre>
+ *
+ * With no arguments an H2 in-memory database is used. System properties:
+ * <ul>
+ * <li>{@code pool} - {@code hikari} (default) or {@code nuodb}
+ * <li>{@code poolSizes} - comma separated, default {@code 2,4,8,16,32}
+ * <li>{@code threads} - comma separated, default {@code 1,4,16,64}
+ * <li>{@code seconds} - time to run each combination, default 5
+ * <li>{@code query} - SQL to run, default {@code SELECT 1 FROM DUAL}
+ * </ul>
+ */
+public class PoolSweep {
+
+	public static void main(String[] args) throws Exception {
+		String pool = System.getProperty("pool", "hikari");
+		int[] poolSizes = parse(System.getProperty("poolSizes", "2,4,8,16,32"));
+		int[] threadCounts = parse(System.getProperty("threads", "1,4,16,64"));
+		long millis = 1000L * Integer.parseInt(System.getProperty("seconds", "5"));
+		String query = System.getProperty("query", "SELECT 1 FROM DUAL");
+
+		String user = args.length == 3 ? args[0] : "sa";
+		String password = args.length == 3 ? args[1] : "";
+		String url = args.length != 3 ? "jdbc:h2:mem:sweep;DB_CLOSE_DELAY=-1" : //
+				args[2].contains(":") ? args[2] : //
+						args[2].contains("/") ? ConnectionHandler.NUODB_JDBC + args[2]
+								: ConnectionHandler.NUODB_DATABASE_URL + args[2];
+
+		System.out.println("Pool: " + pool + ", URL: " + url + ", query: " + query);
+		System.out.println(String.format("%8s %8s %12s %10s %10s %10s %10s", //
+				"poolSize", "threads", "ops/sec", "p50 us", "p95 us", "p99 us", "max us"));
+
+		for (int poolSize : poolSizes) {
+			for (int threads : threadCounts) {
+				DataSource dataSource = createPool(pool, poolSize, url, user, password);
+
+				try {
+					run(dataSource, threads, millis / 5, query, new LatencyRecorder(1)); // Warm up
+					LatencyRecorder acquireTimes = new LatencyRecorder(1 << 20);
+					long ops = run(dataSource, threads, millis, query, acquireTimes);
+
+					Map<String, Object> waits = acquireTimes.percentiles();
+					System.out.println(String.format("%8d %8d %12d %10d %10d %10d %10d", //
+							poolSize, threads, ops * 1000 / millis, waits.get("p50Micros"), waits.get("p95Micros"),
+							waits.get("p99Micros"), waits.get("maxMicros")));
+				} finally {
+					close(dataSource);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the query from several threads for a while.
+	 *
+	 * @return Number of queries run.
+	 */
+	private static long run(DataSource dataSource, int threads, long millis, String query,
+			LatencyRecorder acquireTimes) throws InterruptedException {
+		AtomicLong ops = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(threads);
+		long end = System.currentTimeMillis() + millis;
+
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(() -> {
+				try {
+					while (System.currentTimeMillis() < end) {
+						long start = System.nanoTime();
+
+						try (Connection connection = dataSource.getConnection()) {
+							acquireTimes.record(System.nanoTime() - start);
+
+							try (PreparedStatement ps = connection.prepareStatement(query);
+									ResultSet rs = ps.executeQuery()) {
+								while (rs.next())
+									;
+							}
+						}
+
+						ops.incrementAndGet();
+					}
+				} catch (Exception e) {
+					System.err.println("Worker failed: " + e);
+				} finally {
+					done.countDown();
+				}
+			});
+			worker.start();
+		}
+
+		done.await();
+		return ops.get();
+	}
+
+	private static DataSource createPool(String pool, int poolSize, String url, String user, String password) {
+		if (pool.equals("nuodb")) {
+			Properties properties = new Properties();
+			properties.setProperty("url", url);
+			properties.setProperty("user", user);
+			properties.setProperty("password", password);
+			properties.setProperty("maxActive", Integer.toString(poolSize));
+			properties.setProperty("maxIdle", Integer.toString(poolSize));
+			properties.setProperty("initialSize", Integer.toString(poolSize));
+			return new com.nuodb.jdbc.DataSource(properties);
+		}
+
+		HikariConfig config = new HikariConfig();
+		config.setJdbcUrl(url);
+		config.setUsername(user);
+		config.setPassword(password);
+		config.setMaximumPoolSize(poolSize);
+		config.setMinimumIdle(poolSize);
+		return new HikariDataSource(config);
+	}
+
+	private static void close(DataSource dataSource) throws Exception {
+		if (dataSource instanceof AutoCloseable)
+			((AutoCloseable) dataSource).close();
+	}
+
+	private static int[] parse(String values) {
+		return Arrays.stream(values.split(",")).mapToInt(v -> Integer.parseInt(v.trim())).toArray();
+	}
+}
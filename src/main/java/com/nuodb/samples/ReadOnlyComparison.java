@@ -0,0 +1,132 @@
+package com.nuodb.samples;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.nuodb.samples.jpa.Account;
+import com.nuodb.samples.jpa.AccountService;
+
+/**
+ * Measures what read-only transactions save when loading many accounts. Loads
+ * every account repeatedly, first in an ordinary read-write transaction (the
+ * entities are snapshotted and dirty checked at commit), then through
+ * {@link AccountService#findAll()} (read-only transaction and query hint), and
+ * reports time and bytes allocated per account.
+ * <p>
+ * Usage (from {@code docker/} after {@code mvn package}):
+ *
+ * <pre>
+ * java -cp nuodb-docker-java-demo-1.0.0.RELEASE.jar -Dloader.main=com.nuodb.samples.ReadOnlyComparison \
+ *      org.springframework.boot.loader.PropertiesLauncher [number-of-accounts] [iterations] [--spring.xxx=...]
+ * </pre>
+ *
+ * Defaults are 100,000 accounts and 10 iterations, against the database
+ * configured in {@code application.properties} (H2 in-memory unless
+ * changed). Accounts are added until there are at least that many. Allocation
+ * is measured with HotSpot's per-thread allocation counter.
+ */
+public class ReadOnlyComparison {
+
+	public static void main(String[] args) {
+		int size = args.length > 0 && !args[0].startsWith("--") ? Integer.parseInt(args[0]) : 100_000;
+		int iterations = args.length > 1 && !args[1].startsWith("--") ? Integer.parseInt(args[1]) : 10;
+
+		SpringApplication application = new SpringApplication(SpringBootJpaDemo.class);
+		application.setWebApplicationType(WebApplicationType.NONE);
+
+		try (ConfigurableApplicationContext context = application.run(springArgs(args))) {
+			AccountService accountService = context.getBean(AccountService.class);
+			EntityManager entityManager = SharedEntityManagerCreator
+					.createSharedEntityManager(context.getBean(EntityManagerFactory.class));
+			TransactionTemplate readWrite = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+
+			populate(context.getBean(JdbcTemplate.class), accountService.totalAccounts(), size);
+			long rows = accountService.totalAccounts();
+
+			Supplier<Integer> readWriteLoad = () -> readWrite.execute(status -> entityManager
+					.createQuery("SELECT a FROM Account a", Account.class).getResultList().size());
+			Supplier<Integer> readOnlyLoad = () -> {
+				int count = 0;
+				for (Iterator<Account> i = accountService.findAll().iterator(); i.hasNext(); i.next())
+					count++;
+				return count;
+			};
+
+			// Warm up both paths before measuring
+			for (int i = 0; i < Math.max(3, iterations / 2); i++) {
+				readWriteLoad.get();
+				readOnlyLoad.get();
+			}
+
+			System.out.println(String.format("%d accounts, average of %d iterations", rows, iterations));
+			System.out.println(String.format("%-12s %12s %14s %14s", "Transaction", "ms", "ns/account",
+					"bytes/account"));
+			report("read-write", readWriteLoad, iterations, rows);
+			report("read-only", readOnlyLoad, iterations, rows);
+		}
+	}
+
+	private static void report(String label, Supplier<Integer> load, int iterations, long rows) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		System.gc();
+		long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++)
+			load.get();
+
+		long nanos = (System.nanoTime() - start) / iterations;
+		long allocated = (threads.getThreadAllocatedBytes(threadId) - allocatedBefore) / iterations;
+
+		System.out.println(String.format("%-12s %12d %14d %14d", label, nanos / 1_000_000, nanos / rows,
+				allocated / rows));
+	}
+
+	private static void populate(JdbcTemplate jdbcTemplate, long existing, int size) {
+		List<Object[]> rows = new ArrayList<Object[]>();
+
+		for (long i = existing; i < size; i++) {
+			Demo.AccountData data = Demo.ACCOUNT_DATA[(int) (i % Demo.ACCOUNT_DATA.length)];
+			rows.add(new Object[] { data.name + i, data.balance + (int) i });
+
+			if (rows.size() == 1000 || i == size - 1) {
+				jdbcTemplate.batchUpdate("INSERT INTO demo.Accounts (name, balance) VALUES (?, ?)", rows);
+				rows.clear();
+			}
+		}
+	}
+
+	/**
+	 * Spring arguments, with anything that would get in the way of measuring
+	 * turned off.
+	 */
+	private static String[] springArgs(String[] args) {
+		List<String> springArgs = new ArrayList<String>();
+		springArgs.add("--demo.warmup.enabled=false");
+		springArgs.add("--demo.sql-trace.enabled=false");
+
+		for (String arg : args) {
+			if (arg.startsWith("--"))
+				springArgs.add(arg);
+		}
+
+		return springArgs.toArray(new String[0]);
+	}
+}
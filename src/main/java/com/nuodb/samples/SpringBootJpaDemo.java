@@ -10,13 +10,16 @@ import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.env.Environment;
 import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
@@ -35,8 +38,10 @@ import com.nuodb.samples.jpa.AccountService;
  * @author Paul Chapman
  */
 @EntityScan("com.nuodb.samples.jpa")
+@EnableScheduling
 @EnableTransactionManagement(proxyTargetClass = true)
-@SpringBootApplication(scanBasePackages = { "com.nuodb.samples.jpa", "com.nuodb.samples.web" })
+@SpringBootApplication(scanBasePackages = { "com.nuodb.samples.jpa", "com.nuodb.samples.web",
+		"com.nuodb.samples.analytics", "com.nuodb.samples.jdbc" })
 public class SpringBootJpaDemo {
 
 	protected static final Logger logger = LoggerFactory.getLogger(SpringBootJpaDemo.class);
@@ -47,31 +52,52 @@ public class SpringBootJpaDemo {
 		return new Properties();
 	}
 
+	@Bean
+	@ConfigurationProperties(prefix = "nuodb.datasource")
+	public Properties nuoDbDatasourceProperties() {
+		return new Properties();
+	}
+
 	/**
-	 * Uncomment this bean definition to use NuoDB's DataSource instead of Hikari's.
-	 * Both support connection pooling.
+	 * Set {@code demo.datasource.pool=nuodb} to use NuoDB's DataSource instead of
+	 * Hikari's. Both support connection pooling. Spring Boot only creates a
+	 * Hikari pool if there is no other {@link DataSource} bean.
+	 * <p>
+	 * Pool settings are taken from properties of the form
+	 * {@code nuodb.datasource.xxx} (such as {@code nuodb.datasource.maxActive}),
+	 * Hikari's from {@code spring.datasource.hikari.xxx}. See
+	 * {@code application.properties}.
 	 * 
-	 * @param datasourceProperties Spring Boot data source properties - those of the
-	 *                             form {@code spring.datasource.xxx}.
+	 * @param datasourceProperties      Spring Boot data source properties -
+	 *                                  those of the form
+	 *                                  {@code spring.datasource.xxx}.
+	 * @param nuoDbDatasourceProperties NuoDB data source properties - those of
+	 *                                  the form {@code nuodb.datasource.xxx}.
 	 * @return A NuoDB connection pooling data source
 	 */
-	//@Bean
-	public DataSource nuoDbDataSource(Properties datasourceProperties) {
+	@Bean
+	@ConditionalOnProperty(name = "demo.datasource.pool", havingValue = "nuodb")
+	public DataSource nuoDbDataSource(@Qualifier("datasourceProperties") Properties datasourceProperties,
+			@Qualifier("nuoDbDatasourceProperties") Properties nuoDbDatasourceProperties) {
 		// Use Spring Boot's default data source properties to configure
-		// the NuoDB data source. You might prefer to specify custom
-		// properties such as "nuodb.datasource.username" ...
+		// the NuoDB data source, unless overridden by "nuodb.datasource.xxx"
 		//
 		// For details of all the properties this DataSource recognizes see
 		// http://doc.nuodb.com/Latest/Content/JDBC-DataSource-versus-Driver-Connections.htm
-		com.nuodb.jdbc.DataSource dataSource = new com.nuodb.jdbc.DataSource();
-
-		dataSource.setUrl(datasourceProperties.getProperty("url"));
-		dataSource.setUser(datasourceProperties.getProperty("username"));
-		dataSource.setPassword(datasourceProperties.getProperty("password"));
-		dataSource.setSchema(datasourceProperties.getProperty("hikari.schema"));
-
-		return dataSource;
+		Properties properties = new Properties();
+		setIfPresent(properties, "url", datasourceProperties.getProperty("url"));
+		setIfPresent(properties, "user", datasourceProperties.getProperty("username"));
+		setIfPresent(properties, "password", datasourceProperties.getProperty("password"));
+		setIfPresent(properties, "schema", datasourceProperties.getProperty("hikari.schema"));
+		properties.putAll(nuoDbDatasourceProperties);
+
+		logger.info("Using NuoDB DataSource with properties {}", properties.stringPropertyNames());
+		return new com.nuodb.jdbc.DataSource(properties);
+	}
 
+	private static void setIfPresent(Properties properties, String name, String value) {
+		if (value != null)
+			properties.setProperty(name, value);
 	}
 
 	/**
@@ -0,0 +1,88 @@
+package com.nuodb.samples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nuodb.samples.jpa.Account;
+import com.nuodb.samples.web.AccountWireFormat;
+
+/**
+ * Stand-alone comparison of the JSON and binary ({@link AccountWireFormat})
+ * encodings of an account list: encoded size and time to encode and decode.
+ * <p>
+ * Usage (from {@code docker/} after {@code mvn package}):
+ *
+ * <pre>
+ * java -cp nuodb-docker-java-demo-1.0.0.RELEASE.jar -Dloader.main=com.nuodb.samples.WireFormatComparison \
+ *      org.springframework.boot.loader.PropertiesLauncher [number-of-accounts] [iterations]
+ * </pre>
+ *
+ * Defaults are 100,000 accounts and 20 iterations. Accounts are generated from
+ * {@link Demo#ACCOUNT_DATA}.
+ */
+public class WireFormatComparison {
+
+	public static void main(String[] args) throws IOException {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		List<Account> accounts = new ArrayList<Account>(size);
+		for (int i = 0; i < size; i++) {
+			Demo.AccountData data = Demo.ACCOUNT_DATA[i % Demo.ACCOUNT_DATA.length];
+			accounts.add(new Account(data.name + i, data.balance + i));
+		}
+
+		ObjectMapper objectMapper = new ObjectMapper();
+		TypeReference<List<Account>> listOfAccounts = new TypeReference<List<Account>>() {
+		};
+
+		byte[] json = objectMapper.writeValueAsBytes(accounts);
+		byte[] binary = encode(accounts);
+
+		// Warm up both paths before timing
+		for (int i = 0; i < iterations; i++) {
+			objectMapper.readValue(objectMapper.writeValueAsBytes(accounts), listOfAccounts);
+			AccountWireFormat.decode(new ByteArrayInputStream(encode(accounts)), (id, name, balance) -> {
+			});
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			objectMapper.writeValueAsBytes(accounts);
+		long jsonEncode = (System.nanoTime() - start) / iterations;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			objectMapper.readValue(json, listOfAccounts);
+		long jsonDecode = (System.nanoTime() - start) / iterations;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			encode(accounts);
+		long binaryEncode = (System.nanoTime() - start) / iterations;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			AccountWireFormat.decode(new ByteArrayInputStream(binary), (id, name, balance) -> {
+			});
+		long binaryDecode = (System.nanoTime() - start) / iterations;
+
+		System.out.println(String.format("%d accounts, average of %d iterations", size, iterations));
+		System.out.println(String.format("%-8s %12s %12s %12s", "Format", "Bytes", "Encode us", "Decode us"));
+		System.out.println(String.format("%-8s %12d %12d %12d", "JSON", json.length, jsonEncode / 1000,
+				jsonDecode / 1000));
+		System.out.println(String.format("%-8s %12d %12d %12d", "Binary", binary.length, binaryEncode / 1000,
+				binaryDecode / 1000));
+	}
+
+	private static byte[] encode(List<Account> accounts) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AccountWireFormat.encode(accounts, out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,171 @@
+package com.nuodb.samples.analytics;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import com.nuodb.samples.jpa.Account;
+import com.nuodb.samples.jpa.AccountChangedEvent;
+import com.nuodb.samples.jpa.AccountService;
+
+/**
+ * Answers type-ahead (prefix) queries on account names from memory, without
+ * touching the database.
+ * <p>
+ * Names are held in a {@link RadixTrie} whose nodes cache their top accounts
+ * by balance. It is loaded by streaming every account through
+ * {@link AccountService#forEachAccount} once the application is ready - so
+ * from every shard, if sharding is enabled.
+ * <p>
+ * Committed {@link AccountChangedEvent}s are applied as they arrive, so the
+ * index stays current. Events are delivered by each committing thread, so two
+ * changes to one account can arrive in either order; every
+ * {@code demo.autocomplete.refresh-ms} the accounts named by events since the
+ * last refresh are therefore re-read by id, which always gets the latest.
+ * Changes made without an event - by a {@code BulkBalanceJobs} job or another
+ * instance of this application - are only picked up by rebuilding the whole
+ * trie every {@code demo.autocomplete.full-refresh-ms} (0 to never do it).
+ * Many threads can query at once; updates take a short exclusive lock.
+ */
+@Component
+public class AccountNameIndex {
+
+	protected static final Logger logger = LoggerFactory.getLogger(AccountNameIndex.class);
+
+	private final AccountService accountService;
+
+	private final int topK;
+
+	private final long fullRefreshMillis;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Guarded by {@link #lock}. */
+	private RadixTrie trie;
+
+	private long lastFullRefresh;
+
+	/** Accounts changed since the last refresh. */
+	private Set<Long> changedIds = new HashSet<Long>();
+
+	private final Object changesLock = new Object();
+
+	public AccountNameIndex(AccountService accountService, @Value("${demo.autocomplete.top-k:10}") int topK,
+			@Value("${demo.autocomplete.full-refresh-ms:600000}") long fullRefreshMillis) {
+		this.accountService = accountService;
+		this.trie = new RadixTrie(topK);
+		this.topK = topK;
+		this.fullRefreshMillis = fullRefreshMillis;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	@Order(Ordered.HIGHEST_PRECEDENCE) // Before the warm-up
+	public void load() {
+		refresh();
+	}
+
+	@TransactionalEventListener(fallbackExecution = true)
+	public void onAccountChanged(AccountChangedEvent event) {
+		synchronized (changesLock) {
+			changedIds.add(event.id);
+		}
+
+		put(event.id, event.name, event.balance);
+	}
+
+	/**
+	 * Rebuild the trie if it has never been built or a full refresh is due, then
+	 * re-read the accounts changed since the last refresh. Queries continue
+	 * against the old trie while a new one is built.
+	 */
+	@Scheduled(initialDelayString = "${demo.autocomplete.refresh-ms:10000}", //
+			fixedDelayString = "${demo.autocomplete.refresh-ms:10000}")
+	public synchronized void refresh() {
+		long start = System.currentTimeMillis();
+
+		if (lastFullRefresh == 0 || (fullRefreshMillis > 0 && start - lastFullRefresh >= fullRefreshMillis)) {
+			RadixTrie rebuilt = new RadixTrie(topK);
+			accountService.forEachAccount(account -> {
+				rebuilt.put(account.getId(), account.getName(), account.getBalance());
+			});
+
+			lock.writeLock().lock();
+
+			try {
+				trie = rebuilt;
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			lastFullRefresh = start;
+			logger.info("Indexed {} account names in {}ms", rebuilt.size(), System.currentTimeMillis() - start);
+		}
+
+		// Taken after any rebuild, so changes committed during it are re-read too
+		Set<Long> changes;
+
+		synchronized (changesLock) {
+			changes = changedIds;
+			changedIds = new HashSet<Long>();
+		}
+
+		if (!changes.isEmpty()) {
+			for (Account account : accountService.findByIds(changes))
+				put(account.getId(), account.getName(), account.getBalance());
+		}
+	}
+
+	/**
+	 * Accounts whose names start with a prefix (ignoring case), highest balance
+	 * first.
+	 *
+	 * @param k Number of accounts wanted - no more than
+	 *          {@code demo.autocomplete.top-k} are ever returned.
+	 * @throws IllegalArgumentException If {@code k} is negative.
+	 */
+	public List<RadixTrie.Entry> complete(String prefix, int k) {
+		if (k < 0)
+			throw new IllegalArgumentException("k must not be negative: " + k);
+
+		lock.readLock().lock();
+
+		try {
+			return trie.top(prefix, Math.min(k, topK));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+
+		try {
+			return trie.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void put(long id, String name, int balance) {
+		lock.writeLock().lock();
+
+		try {
+			trie.put(id, name, balance);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package com.nuodb.samples.analytics;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IntSummaryStatistics;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import com.nuodb.samples.jpa.Account;
+import com.nuodb.samples.jpa.AccountChangedEvent;
+import com.nuodb.samples.jpa.AccountService;
+
+/**
+ * An in-process, column-oriented copy of the Accounts table for range and
+ * aggregate questions over {@code balance}.
+ * <p>
+ * Ids and balances are held in primitive arrays, names are dictionary encoded
+ * into an off-heap buffer (see {@link NameDictionary}). Scans use parallel
+ * primitive streams and allocate almost nothing, so they put next to no
+ * pressure on the garbage collector however many accounts there are.
+ * <p>
+ * The snapshot is loaded once the application is ready by streaming the
+ * table, then refreshed every {@code demo.snapshot.refresh-ms}: new accounts
+ * (higher ids) are read using the primary key index, and the accounts named
+ * by {@link AccountChangedEvent}s since the last refresh are re-read by id.
+ * Neither scans the table. The balance carried by an event is not used:
+ * events are delivered by each committing thread, so two changes to one
+ * account can arrive in either order, but re-reading always gets the latest.
+ * <p>
+ * Changes made without an event - by a {@code BulkBalanceJobs} job or another
+ * instance of this application - are only picked up by a full re-read of the
+ * balances every {@code demo.snapshot.full-refresh-ms} (0 to never do one).
+ * Accounts are never deleted by this application, so deletes are not tracked.
+ * Enable by setting {@code demo.snapshot.enabled=true}. Not supported with
+ * sharding - the snapshot reads the Accounts table of the application's own
+ * database, which is empty when accounts are sharded.
+ */
+@Component
+@ConditionalOnProperty(name = "demo.snapshot.enabled", havingValue = "true")
+public class AccountSnapshot {
+
+	public static final String SELECT_NEW_ACCOUNTS = //
+			"SELECT id, name, balance FROM demo.Accounts WHERE id > ? ORDER BY id";
+
+	public static final String SELECT_BALANCES = //
+			"SELECT id, balance FROM demo.Accounts WHERE id <= ? ORDER BY id";
+
+	protected static final Logger logger = LoggerFactory.getLogger(AccountSnapshot.class);
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final AccountService accountService;
+
+	private final NameDictionary names = new NameDictionary();
+
+	private volatile Columns columns = new Columns(new long[0], new int[0], new int[0], 0);
+
+	private volatile long lastRefreshMillis;
+
+	private final long fullRefreshMillis;
+
+	private long lastFullRefresh;
+
+	/** Accounts whose balances have changed since the last refresh. */
+	private Set<Long> changedIds = new HashSet<Long>();
+
+	private final Object changesLock = new Object();
+
+	public AccountSnapshot(JdbcTemplate jdbcTemplate, AccountService accountService,
+			@Value("${demo.snapshot.fetch-size:1000}") int fetchSize,
+			@Value("${demo.snapshot.full-refresh-ms:600000}") long fullRefreshMillis,
+			@Value("${demo.sharding.enabled:false}") boolean sharding) {
+		if (sharding)
+			throw new IllegalStateException("demo.snapshot.enabled is not supported with demo.sharding.enabled");
+
+		// Our own template, so the fetch size does not affect anyone else
+		this.jdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+		this.jdbcTemplate.setFetchSize(fetchSize);
+		this.accountService = accountService;
+		this.fullRefreshMillis = fullRefreshMillis;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	@Order(Ordered.HIGHEST_PRECEDENCE) // Before the warm-up
+	public void load() {
+		refresh();
+		logger.info("Account snapshot loaded: {}", footprint());
+	}
+
+	/**
+	 * Remember which account changed until the next refresh. Inserts are ignored
+	 * - the refresh reads new accounts from the database anyway.
+	 */
+	@TransactionalEventListener(fallbackExecution = true)
+	public void onAccountChanged(AccountChangedEvent event) {
+		if (event.type == AccountChangedEvent.Type.BALANCE) {
+			synchronized (changesLock) {
+				changedIds.add(event.id);
+			}
+		}
+	}
+
+	/**
+	 * Apply balance changes and append new accounts, re-reading every balance if
+	 * a full refresh is due. Only one refresh runs at a time; queries continue
+	 * against the previous snapshot until it completes.
+	 */
+	@Scheduled(initialDelayString = "${demo.snapshot.refresh-ms:10000}", //
+			fixedDelayString = "${demo.snapshot.refresh-ms:10000}")
+	public synchronized void refresh() {
+		long start = System.currentTimeMillis();
+		Columns current = columns;
+		long maxId = current.size == 0 ? 0 : current.ids[current.size - 1];
+		boolean full = current.size > 0 && fullRefreshMillis > 0 && start - lastFullRefresh >= fullRefreshMillis;
+		Set<Long> changes;
+
+		synchronized (changesLock) {
+			changes = changedIds;
+			changedIds = new HashSet<Long>();
+		}
+
+		// Balances first - the copy is what makes the swap below safe. Changes to
+		// accounts not in the snapshot yet are dropped, as the new accounts are
+		// read after the changes were committed.
+		int[] balances = current.balances;
+
+		if (full || !changes.isEmpty()) {
+			balances = Arrays.copyOf(current.balances, current.size);
+			int[] updated = balances;
+
+			if (full) {
+				jdbcTemplate.query(SELECT_BALANCES, rs -> {
+					int ix = Arrays.binarySearch(current.ids, 0, current.size, rs.getLong(1));
+					if (ix >= 0)
+						updated[ix] = rs.getInt(2);
+				}, maxId);
+				lastFullRefresh = start;
+			} else {
+				for (Account account : accountService.findByIds(changes)) {
+					int ix = Arrays.binarySearch(current.ids, 0, current.size, account.getId());
+					if (ix >= 0)
+						updated[ix] = account.getBalance();
+				}
+			}
+		}
+
+		if (current.size == 0)
+			lastFullRefresh = start; // Loading everything is a full refresh
+
+		ColumnAppender appender = new ColumnAppender(current, balances);
+		jdbcTemplate.query(SELECT_NEW_ACCOUNTS, rs -> {
+			appender.append(rs.getLong(1), names.encode(rs.getString(2)), rs.getInt(3));
+		}, maxId);
+
+		columns = appender.toColumns();
+		lastRefreshMillis = System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Count, sum, min, max and average of the balances in a range.
+	 *
+	 * @param min Smallest balance to include.
+	 * @param max Largest balance to include.
+	 */
+	public IntSummaryStatistics summarize(int min, int max) {
+		Columns c = columns;
+		int[] balances = c.balances;
+		return IntStream.range(0, c.size).parallel() //
+				.map(i -> balances[i]) //
+				.filter(b -> b >= min && b <= max) //
+				.summaryStatistics();
+	}
+
+	/**
+	 * Ids of the accounts whose balances lie in a range, lowest ids first.
+	 *
+	 * @param min   Smallest balance to include.
+	 * @param max   Largest balance to include.
+	 * @param limit Maximum number of ids to return.
+	 * @throws IllegalArgumentException If {@code limit} is negative.
+	 */
+	public long[] findIds(int min, int max, int limit) {
+		if (limit < 0)
+			throw new IllegalArgumentException("limit must not be negative: " + limit);
+
+		Columns c = columns;
+		return IntStream.range(0, c.size).parallel() //
+				.filter(i -> c.balances[i] >= min && c.balances[i] <= max) //
+				.limit(limit) //
+				.mapToLong(i -> c.ids[i]) //
+				.toArray();
+	}
+
+	/**
+	 * Name of an account in the snapshot, or {@code null} if not present.
+	 */
+	public String nameOf(long id) {
+		Columns c = columns;
+		int ix = Arrays.binarySearch(c.ids, 0, c.size, id);
+		return ix < 0 ? null : names.decode(c.nameCodes[ix]);
+	}
+
+	/**
+	 * Size of the snapshot and how much memory it uses.
+	 */
+	public Map<String, Object> footprint() {
+		Columns c = columns;
+		Map<String, Object> info = new LinkedHashMap<String, Object>();
+		info.put("accounts", c.size);
+		info.put("distinctNames", names.size());
+		info.put("heapBytes", 8L * c.ids.length + 4L * c.balances.length + 4L * c.nameCodes.length //
+				+ names.heapBytes());
+		info.put("offHeapBytes", names.offHeapBytes());
+		info.put("lastRefreshMillis", lastRefreshMillis);
+		return info;
+	}
+
+	/**
+	 * One immutable version of the columns. Arrays may be longer than
+	 * {@code size}, to leave room for appending.
+	 */
+	private static class Columns {
+		final long[] ids;
+		final int[] balances;
+		final int[] nameCodes;
+		final int size;
+
+		Columns(long[] ids, int[] balances, int[] nameCodes, int size) {
+			this.ids = ids;
+			this.balances = balances;
+			this.nameCodes = nameCodes;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Builds the next version of the columns. Ids and name codes of existing
+	 * accounts never change, so those arrays are shared until they need to grow,
+	 * as is the balances array if no balance has changed.
+	 * Spare capacity beyond an older version's {@code size} is invisible to its
+	 * readers.
+	 */
+	private static class ColumnAppender {
+		long[] ids;
+		int[] balances;
+		int[] nameCodes;
+		int size;
+
+		ColumnAppender(Columns current, int[] balances) {
+			this.ids = current.ids;
+			this.balances = balances;
+			this.nameCodes = current.nameCodes;
+			this.size = current.size;
+		}
+
+		void append(long id, int nameCode, int balance) {
+			if (size == ids.length) {
+				int capacity = Math.max(1024, 2 * size);
+				ids = Arrays.copyOf(ids, capacity);
+				nameCodes = Arrays.copyOf(nameCodes, capacity);
+			}
+
+			if (size >= balances.length)
+				balances = Arrays.copyOf(balances, ids.length);
+
+			ids[size] = id;
+			nameCodes[size] = nameCode;
+			balances[size] = balance;
+			size++;
+		}
+
+		Columns toColumns() {
+			return new Columns(ids, balances, nameCodes, size);
+		}
+	}
+}
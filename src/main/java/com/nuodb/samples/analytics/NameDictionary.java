@@ -0,0 +1,92 @@
+package com.nuodb.samples.analytics;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dictionary encoding for account names. Each distinct name is stored once, as
+ * UTF-8, in a direct (off-heap) buffer and identified by an {@code int} code.
+ * <p>
+ * The dictionary is append-only. A single thread adds names; any number of
+ * threads may decode codes that were handed out before they started reading.
+ */
+class NameDictionary {
+
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+
+	/** Used only by the writer to find existing codes. */
+	private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+	private volatile ByteBuffer data = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+
+	/** Start of each name in {@link #data}, plus one trailing end offset. */
+	private volatile int[] offsets = new int[1024];
+
+	private volatile int size = 0;
+
+	/**
+	 * Get the code for a name, adding it to the dictionary if necessary. Not
+	 * thread-safe - only one thread may add names.
+	 */
+	int encode(String name) {
+		if (name == null)
+			return -1;
+
+		Integer code = codes.get(name);
+		if (code != null)
+			return code;
+
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int start = offsets[size];
+
+		if (start + bytes.length > data.capacity()) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(2 * data.capacity(), start + bytes.length));
+			ByteBuffer old = data.duplicate();
+			old.limit(start);
+			bigger.put(old);
+			data = bigger;
+		}
+
+		ByteBuffer target = data.duplicate();
+		target.position(start);
+		target.put(bytes);
+
+		int[] newOffsets = size + 2 > offsets.length ? Arrays.copyOf(offsets, 2 * offsets.length) : offsets;
+		newOffsets[size + 1] = start + bytes.length;
+		offsets = newOffsets;
+
+		codes.put(name, size);
+		return size++;
+	}
+
+	/**
+	 * Decode a name. Allocates the returned string, so avoid in tight loops.
+	 */
+	String decode(int code) {
+		if (code < 0)
+			return null;
+
+		int[] o = offsets;
+		ByteBuffer source = data.duplicate();
+		byte[] bytes = new byte[o[code + 1] - o[code]];
+		source.position(o[code]);
+		source.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	int size() {
+		return size;
+	}
+
+	long offHeapBytes() {
+		return data.capacity();
+	}
+
+	long heapBytes() {
+		// Excludes the writer's lookup map
+		return 4L * offsets.length;
+	}
+}
@@ -0,0 +1,341 @@
+package com.nuodb.samples.analytics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A radix (compressed prefix) trie of account names, case-insensitive. Every
+ * node caches the accounts in its subtree with the highest balances, so the
+ * top matches for any prefix are found by walking down the prefix alone.
+ * <p>
+ * Accounts sharing a name are kept in balance order, so a change only merges
+ * the first {@code topK} of them with the children's cached top accounts, not
+ * all of them. Nodes left empty by a removal are pruned and single-child
+ * chains are merged back into one edge.
+ * <p>
+ * Not thread-safe - see {@link AccountNameIndex}.
+ */
+public class RadixTrie {
+
+	/**
+	 * An account as held in the trie. Immutable - a balance change replaces it.
+	 */
+	public static class Entry {
+		public final long id;
+		public final String name;
+		public final int balance;
+
+		Entry(long id, String name, int balance) {
+			this.id = id;
+			this.name = name;
+			this.balance = balance;
+		}
+	}
+
+	static final Comparator<Entry> HIGHEST_BALANCE_FIRST = (a, b) -> a.balance != b.balance
+			? Integer.compare(b.balance, a.balance)
+			: Long.compare(a.id, b.id);
+
+	private static final Entry[] NONE = new Entry[0];
+
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	private final int topK;
+
+	private final Node root = new Node("");
+
+	private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+	/**
+	 * @param topK Number of accounts each node caches - the most any query can
+	 *             return.
+	 */
+	RadixTrie(int topK) {
+		this.topK = topK;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Add an account, or update it if already present.
+	 */
+	void put(long id, String name, int balance) {
+		if (name == null)
+			return;
+
+		Entry old = entries.get(id);
+
+		if (old != null) {
+			if (old.name.equals(name) && old.balance == balance)
+				return;
+
+			remove(old);
+		}
+
+		Entry entry = new Entry(id, name, balance);
+		entries.put(id, entry);
+
+		List<Node> path = new ArrayList<Node>();
+		Node node = insertPath(key(name), path);
+		node.accounts = insert(node.accounts, entry);
+		recompute(path);
+	}
+
+	/**
+	 * The accounts with the highest balances among those whose name starts with
+	 * a prefix.
+	 *
+	 * @param k At most {@code topK} (see constructor).
+	 */
+	List<Entry> top(String prefix, int k) {
+		String key = key(prefix);
+		Node node = root;
+		int matched = 0;
+
+		while (matched < key.length()) {
+			Node child = node.child(key.charAt(matched));
+
+			if (child == null)
+				return Collections.emptyList();
+
+			int common = commonPrefix(child.label, key, matched);
+
+			if (matched + common < key.length() && common < child.label.length())
+				return Collections.emptyList(); // Diverges part way along the edge
+
+			matched += common;
+			node = child;
+		}
+
+		return Arrays.asList(Arrays.copyOf(node.top, Math.min(k, node.top.length)));
+	}
+
+	private void remove(Entry entry) {
+		List<Node> path = new ArrayList<Node>();
+		Node node = findPath(key(entry.name), path);
+
+		if (node != null) {
+			node.accounts = delete(node.accounts, entry);
+			int last = path.size() - 1;
+
+			if (last > 0 && node.accounts.length == 0 && node.children.length == 0) {
+				// Nothing left below - drop the node, then maybe merge its parent
+				path.remove(last--);
+				path.get(last).removeChild(node);
+				node = path.get(last);
+			}
+
+			if (last > 0 && node.accounts.length == 0 && node.children.length == 1)
+				node.mergeWithChild();
+
+			recompute(path);
+		}
+
+		entries.remove(entry.id);
+	}
+
+	/**
+	 * Find or create the node for a key, splitting edges as needed.
+	 *
+	 * @param path Filled with the nodes from the root to the result.
+	 */
+	private Node insertPath(String key, List<Node> path) {
+		Node node = root;
+		path.add(node);
+		int matched = 0;
+
+		while (matched < key.length()) {
+			Node child = node.child(key.charAt(matched));
+
+			if (child == null) {
+				child = new Node(key.substring(matched));
+				node.addChild(child);
+				path.add(child);
+				return child;
+			}
+
+			int common = commonPrefix(child.label, key, matched);
+
+			if (common < child.label.length()) {
+				// Split the edge: node -> middle -> child
+				Node middle = new Node(child.label.substring(0, common));
+				node.replaceChild(child, middle);
+				child.label = child.label.substring(common);
+				middle.addChild(child);
+				middle.top = child.top;
+				child = middle;
+			}
+
+			matched += common;
+			node = child;
+			path.add(node);
+		}
+
+		return node;
+	}
+
+	private Node findPath(String key, List<Node> path) {
+		Node node = root;
+		path.add(node);
+		int matched = 0;
+
+		while (matched < key.length()) {
+			Node child = node.child(key.charAt(matched));
+
+			if (child == null || !key.startsWith(child.label, matched))
+				return null;
+
+			matched += child.label.length();
+			node = child;
+			path.add(node);
+		}
+
+		return node;
+	}
+
+	/**
+	 * Rebuild the cached top accounts of each node on a path, deepest first.
+	 * Only the first {@code topK} accounts of a node can be among its top, so
+	 * each node merges at most {@code topK} per child plus {@code topK} of its
+	 * own.
+	 */
+	private void recompute(List<Node> path) {
+		for (int i = path.size() - 1; i >= 0; i--) {
+			Node node = path.get(i);
+			List<Entry> candidates = new ArrayList<Entry>(
+					Arrays.asList(node.accounts).subList(0, Math.min(topK, node.accounts.length)));
+
+			for (Node child : node.children)
+				candidates.addAll(Arrays.asList(child.top));
+
+			candidates.sort(HIGHEST_BALANCE_FIRST);
+			node.top = candidates.subList(0, Math.min(topK, candidates.size())).toArray(NONE);
+		}
+	}
+
+	private static String key(String name) {
+		return name.toUpperCase(Locale.ROOT);
+	}
+
+	private static int commonPrefix(String label, String key, int offset) {
+		int max = Math.min(label.length(), key.length() - offset);
+		int i = 0;
+
+		while (i < max && label.charAt(i) == key.charAt(offset + i))
+			i++;
+
+		return i;
+	}
+
+	/**
+	 * Insert an entry into an array sorted {@link #HIGHEST_BALANCE_FIRST},
+	 * keeping it sorted.
+	 */
+	private static Entry[] insert(Entry[] entries, Entry entry) {
+		int ix = -Arrays.binarySearch(entries, entry, HIGHEST_BALANCE_FIRST) - 1;
+		Entry[] result = new Entry[entries.length + 1];
+		System.arraycopy(entries, 0, result, 0, ix);
+		result[ix] = entry;
+		System.arraycopy(entries, ix, result, ix + 1, entries.length - ix);
+		return result;
+	}
+
+	/**
+	 * Remove an entry from an array sorted {@link #HIGHEST_BALANCE_FIRST}.
+	 */
+	private static Entry[] delete(Entry[] entries, Entry entry) {
+		int ix = Arrays.binarySearch(entries, entry, HIGHEST_BALANCE_FIRST);
+
+		if (ix < 0)
+			return entries;
+
+		Entry[] result = new Entry[entries.length - 1];
+		System.arraycopy(entries, 0, result, 0, ix);
+		System.arraycopy(entries, ix + 1, result, ix, result.length - ix);
+		return result;
+	}
+
+	private static class Node {
+		/** Characters on the edge leading to this node. */
+		String label;
+
+		/** Sorted by the first character of their labels. */
+		Node[] children = NO_CHILDREN;
+
+		/** Accounts whose name ends at this node, highest balance first. */
+		Entry[] accounts = NONE;
+
+		/** Highest balances in this subtree. */
+		Entry[] top = NONE;
+
+		Node(String label) {
+			this.label = label;
+		}
+
+		Node child(char c) {
+			int low = 0;
+			int high = children.length - 1;
+
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				char m = children[mid].label.charAt(0);
+
+				if (m < c)
+					low = mid + 1;
+				else if (m > c)
+					high = mid - 1;
+				else
+					return children[mid];
+			}
+
+			return null;
+		}
+
+		void addChild(Node child) {
+			Node[] result = Arrays.copyOf(children, children.length + 1);
+			int i = result.length - 1;
+
+			while (i > 0 && result[i - 1].label.charAt(0) > child.label.charAt(0)) {
+				result[i] = result[i - 1];
+				i--;
+			}
+
+			result[i] = child;
+			children = result;
+		}
+
+		void replaceChild(Node oldChild, Node newChild) {
+			for (int i = 0; i < children.length; i++) {
+				if (children[i] == oldChild)
+					children[i] = newChild;
+			}
+		}
+
+		void removeChild(Node child) {
+			List<Node> remaining = new ArrayList<Node>(Arrays.asList(children));
+			remaining.remove(child);
+			children = remaining.isEmpty() ? NO_CHILDREN : remaining.toArray(NO_CHILDREN);
+		}
+
+		/**
+		 * Absorb the only child, so an edge is not split where nothing branches.
+		 * The node keeps its place in its parent, as its label's first character
+		 * does not change.
+		 */
+		void mergeWithChild() {
+			Node child = children[0];
+			label = label + child.label;
+			children = child.children;
+			accounts = child.accounts;
+			top = child.top;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.nuodb.samples.jdbc;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent latency samples in a fixed-size ring so percentiles
+ * can be reported without unbounded memory or locking on the hot path.
+ * Percentiles are approximate while samples are being recorded concurrently.
+ */
+public class LatencyRecorder {
+
+	private final long[] samples;
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param capacity Number of recent samples to keep.
+	 */
+	public LatencyRecorder(int capacity) {
+		this.samples = new long[capacity];
+	}
+
+	public void record(long nanos) {
+		samples[(int) (count.getAndIncrement() % samples.length)] = nanos;
+		max.accumulateAndGet(nanos, Math::max);
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	/**
+	 * Percentiles of the retained samples, in microseconds.
+	 */
+	public Map<String, Object> percentiles() {
+		int n = (int) Math.min(count.get(), samples.length);
+		long[] sorted = Arrays.copyOf(samples, n);
+		Arrays.sort(sorted);
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("samples", count.get());
+		result.put("p50Micros", percentile(sorted, 0.50) / 1000);
+		result.put("p95Micros", percentile(sorted, 0.95) / 1000);
+		result.put("p99Micros", percentile(sorted, 0.99) / 1000);
+		result.put("maxMicros", max.get() / 1000);
+		return result;
+	}
+
+	/**
+	 * A percentile of a sorted array, 0 if it is empty.
+	 *
+	 * @param fraction 0.5 for the median, 0.99 for the 99th percentile and so on.
+	 */
+	public static long percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0)
+			return 0;
+
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)];
+	}
+}
@@ -0,0 +1,127 @@
+package com.nuodb.samples.jdbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ * Wraps the application's connection pool, whichever one it is, to measure
+ * how long it takes to get a connection.
+ * <p>
+ * Connections are handed out unwrapped, so using them costs nothing extra.
+ * Active, idle and total connection counts therefore come from the pool
+ * itself, so are only available for Hikari. For other pools only the number
+ * of callers waiting in {@link #getConnection()} is counted. Use {@link #unwrap(Class)} to get at the pool - the
+ * data source bean is this wrapper, not the pool. Closing the wrapper closes
+ * the pool.
+ */
+public class MonitoredDataSource extends DelegatingDataSource implements Closeable {
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final LatencyRecorder acquireTimes = new LatencyRecorder(4096);
+
+	public MonitoredDataSource(DataSource targetDataSource) {
+		super(targetDataSource);
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		pending.incrementAndGet();
+		long start = System.nanoTime();
+
+		try {
+			return super.getConnection();
+		} finally {
+			acquireTimes.record(System.nanoTime() - start);
+			pending.decrementAndGet();
+		}
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		pending.incrementAndGet();
+		long start = System.nanoTime();
+
+		try {
+			return super.getConnection(username, password);
+		} finally {
+			acquireTimes.record(System.nanoTime() - start);
+			pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Close the wrapped pool. Spring only infers a destroy method from the bean
+	 * it ends up with - this wrapper - so without this the pool would never be
+	 * shut down.
+	 */
+	@Override
+	public void close() throws IOException {
+		closeTarget(getTargetDataSource());
+	}
+
+	/**
+	 * Live pool statistics.
+	 */
+	public Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		HikariDataSource hikariPool = unwrapHikari();
+		DataSource pool = hikariPool != null ? hikariPool : getTargetDataSource();
+		stats.put("pool", pool == null ? null : pool.getClass().getName());
+
+		HikariPoolMXBean hikari = hikariPool == null ? null : hikariPool.getHikariPoolMXBean();
+
+		if (hikari != null) {
+			stats.put("active", hikari.getActiveConnections());
+			stats.put("pending", hikari.getThreadsAwaitingConnection());
+			stats.put("idle", hikari.getIdleConnections());
+			stats.put("total", hikari.getTotalConnections());
+			stats.put("maximumPoolSize", hikariPool.getMaximumPoolSize());
+		} else {
+			stats.put("pending", pending.get());
+		}
+
+		stats.put("acquireTime", acquireTimes.percentiles());
+		return stats;
+	}
+
+	/**
+	 * The Hikari pool, if that is what is wrapped - perhaps by other wrappers
+	 * such as {@link TracingDataSource}.
+	 */
+	private HikariDataSource unwrapHikari() {
+		try {
+			return isWrapperFor(HikariDataSource.class) ? unwrap(HikariDataSource.class) : null;
+		} catch (SQLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Close a wrapped data source, if it can be closed.
+	 */
+	static void closeTarget(DataSource target) throws IOException {
+		if (!(target instanceof AutoCloseable))
+			return;
+
+		try {
+			((AutoCloseable) target).close();
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Cannot close " + target, e);
+		}
+	}
+}
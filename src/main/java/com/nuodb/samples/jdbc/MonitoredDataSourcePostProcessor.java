@@ -0,0 +1,43 @@
+package com.nuodb.samples.jdbc;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Wraps the application's {@link DataSource} in a {@link MonitoredDataSource}
+ * and, if there is a {@link SqlTracer}, a {@link TracingDataSource}.
+ * <p>
+ * Both wrappers are {@link java.io.Closeable} and close what they wrap, so the
+ * pool is still shut down by the destroy method Spring infers for the bean.
+ */
+@Component
+public class MonitoredDataSourcePostProcessor implements BeanPostProcessor, BeanFactoryAware {
+
+	private BeanFactory beanFactory;
+
+	@Override
+	public void setBeanFactory(BeanFactory beanFactory) {
+		this.beanFactory = beanFactory;
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) {
+		if (bean instanceof DataSource && !(bean instanceof MonitoredDataSource)) {
+			// Looked up here, not injected, so the tracer is not created as early
+			// as post-processors are
+			SqlTracer tracer = beanFactory.getBeanProvider(SqlTracer.class).getIfAvailable();
+			DataSource dataSource = (DataSource) bean;
+
+			if (tracer != null)
+				dataSource = new TracingDataSource(dataSource, tracer);
+
+			return new MonitoredDataSource(dataSource);
+		}
+
+		return bean;
+	}
+}
@@ -0,0 +1,292 @@
+package com.nuodb.samples.jdbc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collects timings of SQL statements reported by {@link TracingDataSource}.
+ * <p>
+ * Every statement is timed, and every one slower than
+ * {@code demo.sql-trace.slow-ms} is logged. Only a
+ * {@code demo.sql-trace.sample-rate} fraction is sampled - reported whatever
+ * its time, with its row count, and counted in the per-statement statistics:
+ * {@link TracingDataSource} asks {@link #sample()} as each statement is
+ * created, and reports the others only if {@link #isSlow(long)}.
+ * <p>
+ * Request threads only copy each event into a preallocated ring buffer. If
+ * the ring is full the event is dropped and counted, the request thread never
+ * waits. A background thread normalizes the SQL (literals replaced by
+ * {@code ?}), aggregates per-statement statistics and keeps a log of the most
+ * recent slow statements.
+ * <p>
+ * On unless {@code demo.sql-trace.enabled=false}.
+ */
+@Component
+@ConditionalOnProperty(name = "demo.sql-trace.enabled", havingValue = "true", matchIfMissing = true)
+public class SqlTracer {
+
+	protected static final Logger logger = LoggerFactory.getLogger(SqlTracer.class);
+
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+	private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+
+	private static final Pattern IN_LIST = Pattern.compile("(?i)\\bin\\s*\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)");
+
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	private final double sampleRate;
+
+	private final long slowNanos;
+
+	private final int slowLogSize;
+
+	private final Slot[] ring;
+
+	private final int mask;
+
+	/** Next slot to claim. Written by request threads. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** Next slot to consume. Written only by the drain thread. */
+	private volatile long head = 0;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	// Guarded by this, written by the drain thread
+	private final Map<String, QueryStats> stats = new HashMap<String, QueryStats>();
+	private final Deque<Map<String, Object>> slowLog = new ArrayDeque<Map<String, Object>>();
+	private long recorded = 0;
+
+	private volatile Thread drainer;
+
+	public SqlTracer(@Value("${demo.sql-trace.sample-rate:0.1}") double sampleRate,
+			@Value("${demo.sql-trace.slow-ms:100}") long slowMillis,
+			@Value("${demo.sql-trace.slow-log-size:100}") int slowLogSize,
+			@Value("${demo.sql-trace.capacity:8192}") int capacity) {
+		if (Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("demo.sql-trace.capacity must be a power of 2, not " + capacity);
+
+		this.sampleRate = sampleRate;
+		this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+		this.slowLogSize = slowLogSize;
+		this.ring = new Slot[capacity];
+		this.mask = capacity - 1;
+
+		for (int i = 0; i < capacity; i++)
+			ring[i] = new Slot();
+	}
+
+	@PostConstruct
+	public void start() {
+		drainer = new Thread(this::drainLoop, "sql-tracer");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	@PreDestroy
+	public void stop() {
+		Thread thread = drainer;
+		drainer = null;
+
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Should a new statement be traced?
+	 */
+	public boolean sample() {
+		return sampleRate >= 1 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+	}
+
+	/**
+	 * Should a statement that was not sampled be reported anyway?
+	 */
+	public boolean isSlow(long nanos) {
+		return nanos >= slowNanos;
+	}
+
+	/**
+	 * Report a statement that has finished. Called on the request thread.
+	 *
+	 * @param sql     SQL as given to the driver.
+	 * @param binds   Number of parameters bound.
+	 * @param nanos   Execution time.
+	 * @param rows    Rows read or updated, -1 if unknown.
+	 * @param sampled Whether to include it in the statistics - statements that
+	 *                were not sampled only go in the slow statement log.
+	 */
+	public void record(String sql, int binds, long nanos, long rows, boolean sampled) {
+		boolean slow = isSlow(nanos);
+		long claim;
+		do {
+			claim = tail.get();
+
+			if (claim - head >= ring.length) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!tail.compareAndSet(claim, claim + 1));
+
+		Slot slot = ring[(int) claim & mask];
+		slot.sql = sql;
+		slot.binds = binds;
+		slot.nanos = nanos;
+		slot.rows = rows;
+		slot.slow = slow;
+		slot.sampled = sampled;
+		slot.timestamp = System.currentTimeMillis();
+		slot.sequence = claim; // Publish
+	}
+
+	/**
+	 * Statistics for the statements with the highest total time, and the slow
+	 * statement log, newest first.
+	 *
+	 * @param top Number of statements to include.
+	 */
+	public synchronized Map<String, Object> report(int top) {
+		List<QueryStats> sorted = new ArrayList<QueryStats>(stats.values());
+		sorted.sort((a, b) -> Long.compare(b.totalNanos, a.totalNanos));
+
+		List<Map<String, Object>> topQueries = new ArrayList<Map<String, Object>>();
+		for (QueryStats queryStats : sorted.subList(0, Math.min(top, sorted.size())))
+			topQueries.add(queryStats.toMap());
+
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("sampleRate", sampleRate);
+		report.put("slowMillis", TimeUnit.NANOSECONDS.toMillis(slowNanos));
+		report.put("recorded", recorded);
+		report.put("dropped", dropped.get());
+		report.put("distinctStatements", stats.size());
+		report.put("top", topQueries);
+		report.put("slow", new ArrayList<Map<String, Object>>(slowLog));
+		return report;
+	}
+
+	private void drainLoop() {
+		while (drainer == Thread.currentThread()) {
+			Slot slot = ring[(int) head & mask];
+
+			if (slot.sequence != head) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+				continue;
+			}
+
+			String sql = slot.sql;
+			int binds = slot.binds;
+			long nanos = slot.nanos;
+			long rows = slot.rows;
+			boolean slow = slot.slow;
+			boolean sampled = slot.sampled;
+			long timestamp = slot.timestamp;
+			slot.sql = null;
+			head = head + 1; // Frees the slot
+
+			try {
+				aggregate(normalize(sql), binds, nanos, rows, slow, sampled, timestamp);
+			} catch (RuntimeException e) {
+				logger.warn("Failed to record SQL trace", e);
+			}
+		}
+	}
+
+	private synchronized void aggregate(String sql, int binds, long nanos, long rows, boolean slow,
+			boolean sampled, long timestamp) {
+		if (sampled) {
+			recorded++;
+			stats.computeIfAbsent(sql, QueryStats::new).add(binds, nanos, rows);
+		}
+
+		if (slow) {
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			entry.put("at", new Date(timestamp));
+			entry.put("sql", sql);
+			entry.put("durationMicros", nanos / 1000);
+			entry.put("binds", binds);
+			entry.put("rows", rows);
+			slowLog.addFirst(entry);
+
+			if (slowLog.size() > slowLogSize)
+				slowLog.removeLast();
+
+			logger.warn("Slow SQL ({}ms, {} rows): {}", nanos / 1_000_000, rows, sql);
+		}
+	}
+
+	/**
+	 * Replace literals by {@code ?} and {@code IN} lists by {@code IN (...)} so
+	 * statements differing only in their values are counted together.
+	 */
+	static String normalize(String sql) {
+		String normalized = STRING_LITERAL.matcher(sql).replaceAll("?");
+		normalized = NUMBER_LITERAL.matcher(normalized).replaceAll("?");
+		normalized = IN_LIST.matcher(normalized).replaceAll("in (...)");
+		return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+	}
+
+	private static class Slot {
+		volatile long sequence = -1;
+		String sql;
+		int binds;
+		long nanos;
+		long rows;
+		boolean slow;
+		boolean sampled;
+		long timestamp;
+	}
+
+	private static class QueryStats {
+		final String sql;
+		long count;
+		long totalNanos;
+		long maxNanos;
+		long rows;
+		long binds;
+
+		QueryStats(String sql) {
+			this.sql = sql;
+		}
+
+		void add(int binds, long nanos, long rows) {
+			count++;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+			this.rows += Math.max(0, rows);
+			this.binds += binds;
+		}
+
+		Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("sql", sql);
+			map.put("count", count);
+			map.put("totalMillis", totalNanos / 1_000_000);
+			map.put("meanMicros", totalNanos / count / 1000);
+			map.put("maxMicros", maxNanos / 1000);
+			map.put("meanRows", rows / count);
+			map.put("meanBinds", binds / count);
+			return map;
+		}
+	}
+}
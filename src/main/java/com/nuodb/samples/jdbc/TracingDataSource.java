@@ -0,0 +1,222 @@
+package com.nuodb.samples.jdbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * Wraps a {@link DataSource} so the statements executed on its connections are
+ * timed and reported to a {@link SqlTracer}, along with the number of
+ * parameters bound and the number of rows read or updated. Replaces
+ * {@code spring.jpa.show-sql}, which logs every statement synchronously and
+ * only covers Hibernate.
+ * <p>
+ * Every execute is timed, with one pair of {@link System#nanoTime()} calls, so
+ * no slow statement is missed. Whether a statement is sampled is decided when
+ * it is created: only sampled statements have their result sets wrapped to
+ * count rows and are reported whatever their time. Unsampled ones are only
+ * reported if they are slow.
+ * <p>
+ * The time reported for a query is the time to execute it, not to read its
+ * results. Its row count is reported when the result set (or failing that the
+ * statement) is closed.
+ */
+public class TracingDataSource extends DelegatingDataSource implements Closeable {
+
+	private final SqlTracer tracer;
+
+	public TracingDataSource(DataSource targetDataSource, SqlTracer tracer) {
+		super(targetDataSource);
+		this.tracer = tracer;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return trace(super.getConnection());
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return trace(super.getConnection(username, password));
+	}
+
+	@Override
+	public void close() throws IOException {
+		MonitoredDataSource.closeTarget(getTargetDataSource());
+	}
+
+	private Connection trace(Connection connection) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+					Object result = invoke(connection, method, args);
+					String name = method.getName();
+
+					if (!(result instanceof Statement))
+						return result;
+
+					if (result instanceof CallableStatement)
+						return trace((Statement) result, CallableStatement.class, (String) args[0]);
+					else if (result instanceof PreparedStatement && name.equals("prepareStatement"))
+						return trace((Statement) result, PreparedStatement.class, (String) args[0]);
+					else if (result instanceof Statement && name.equals("createStatement"))
+						return trace((Statement) result, Statement.class, null);
+
+					return result;
+				});
+	}
+
+	private Statement trace(Statement statement, Class<? extends Statement> type, String preparedSql) {
+		return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] { type },
+				new StatementHandler(statement, preparedSql, tracer.sample()));
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	/**
+	 * Times the execute methods and counts parameters bound by the set methods.
+	 */
+	private class StatementHandler implements InvocationHandler {
+
+		private final Statement statement;
+
+		/** Report every execute, with row counts, not just slow ones. */
+		private final boolean sampled;
+
+		private String sql;
+
+		private int binds = 0;
+
+		/** Query waiting for its rows to be counted. */
+		private PendingQuery pending;
+
+		StatementHandler(Statement statement, String preparedSql, boolean sampled) {
+			this.statement = statement;
+			this.sql = preparedSql;
+			this.sampled = sampled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+
+			if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+				binds = Math.max(binds, (Integer) args[0]);
+			} else if (name.equals("clearParameters")) {
+				binds = 0;
+			} else if (name.equals("close")) {
+				report();
+			} else if (name.startsWith("execute")) {
+				return execute(method, args);
+			}
+
+			return TracingDataSource.invoke(statement, method, args);
+		}
+
+		private Object execute(Method method, Object[] args) throws Throwable {
+			if (args != null && args.length > 0 && args[0] instanceof String)
+				sql = (String) args[0];
+
+			report(); // Any previous result set is implicitly closed
+			long start = System.nanoTime();
+			Object result = null;
+
+			try {
+				result = TracingDataSource.invoke(statement, method, args);
+			} finally {
+				long nanos = System.nanoTime() - start;
+
+				if (sampled && result instanceof ResultSet && sql != null) {
+					pending = new PendingQuery(sql, binds, nanos);
+					result = count((ResultSet) result, pending);
+				} else if (sampled && sql != null) {
+					tracer.record(sql, binds, nanos, rows(result), true);
+				} else if (sql != null && tracer.isSlow(nanos)) {
+					tracer.record(sql, binds, nanos, rows(result), false);
+				}
+			}
+
+			return result;
+		}
+
+		private void report() {
+			if (pending != null) {
+				pending.report();
+				pending = null;
+			}
+		}
+
+		private long rows(Object result) {
+			if (result instanceof Integer || result instanceof Long)
+				return ((Number) result).longValue();
+
+			long rows = 0;
+
+			if (result instanceof int[]) {
+				for (int count : (int[]) result)
+					rows += Math.max(0, count);
+			} else if (result instanceof long[]) {
+				for (long count : (long[]) result)
+					rows += Math.max(0, count);
+			} else {
+				return -1; // execute() - the caller reads the counts itself
+			}
+
+			return rows;
+		}
+
+		private ResultSet count(ResultSet resultSet, PendingQuery query) {
+			return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+					new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+						Object result = TracingDataSource.invoke(resultSet, method, args);
+						String name = method.getName();
+
+						if (name.equals("next") && Boolean.TRUE.equals(result))
+							query.rows++;
+						else if (name.equals("close"))
+							query.report();
+
+						return result;
+					});
+		}
+	}
+
+	private class PendingQuery {
+		final String sql;
+		final int binds;
+		final long nanos;
+		long rows = 0;
+		boolean reported = false;
+
+		PendingQuery(String sql, int binds, long nanos) {
+			this.sql = sql;
+			this.binds = binds;
+			this.nanos = nanos;
+		}
+
+		void report() {
+			if (!reported) {
+				reported = true;
+				tracer.record(sql, binds, nanos, rows, true);
+			}
+		}
+	}
+}
@@ -69,12 +69,18 @@ public class Account {
 		return balance;
 	}
 
+	/**
+	 * @throws ArithmeticException If the balance would overflow.
+	 */
 	public void credit(int amount) {
-		this.balance += amount;
+		this.balance = Math.addExact(balance, amount);
 	}
 
+	/**
+	 * @throws ArithmeticException If the balance would overflow.
+	 */
 	public void debit(int amount) {
-		this.balance -= amount;
+		this.balance = Math.subtractExact(balance, amount);
 	}
 
 }
@@ -0,0 +1,186 @@
+package com.nuodb.samples.jpa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Coalesces single-account lookups made concurrently by different threads into
+ * one {@code IN (...)} query, similar to a GraphQL DataLoader.
+ * <p>
+ * The first lookup to arrive opens a short window (microseconds, see
+ * {@code demo.accounts.batch.window-micros}). Every lookup arriving during that
+ * window, or while the previous batch is still running, is answered by the
+ * same query. Under light load a lookup costs one extra window of latency;
+ * under heavy fan-in the number of database round trips drops to roughly one
+ * per window.
+ * <p>
+ * Batches run on a single dispatcher thread in their own read-only
+ * transaction, so callers should <i>not</i> already be in a transaction - the
+ * accounts returned are detached.
+ */
+@Component
+public class AccountBatchLoader {
+
+	protected static final Logger logger = LoggerFactory.getLogger(AccountBatchLoader.class);
+
+	private final BlockingQueue<PendingLookup> pending = new LinkedBlockingQueue<PendingLookup>();
+
+	private final AccountRepository accountRepository;
+
+	private final TransactionTemplate readOnlyTransaction;
+
+	private final long windowNanos;
+
+	private final int maxBatchSize;
+
+	private final long timeoutMillis;
+
+	private volatile Thread dispatcher;
+
+	public AccountBatchLoader(AccountRepository accountRepository, PlatformTransactionManager transactionManager,
+			@Value("${demo.accounts.batch.window-micros:200}") long windowMicros,
+			@Value("${demo.accounts.batch.max-size:" + JpaAccountRepository.MAX_IDS_PER_QUERY + "}") int maxBatchSize,
+			@Value("${demo.accounts.batch.timeout-ms:30000}") long timeoutMillis) {
+		this.accountRepository = accountRepository;
+		this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+		this.readOnlyTransaction.setReadOnly(true);
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.maxBatchSize = maxBatchSize;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	@PostConstruct
+	public void start() {
+		dispatcher = new Thread(this::dispatchLoop, "account-batch-loader");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	@PreDestroy
+	public void stop() {
+		Thread thread = dispatcher;
+		dispatcher = null;
+
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * Fetch a single account, sharing the query with any other lookups made at
+	 * the same time. Blocks until the batch containing this lookup completes, or
+	 * for at most {@code demo.accounts.batch.timeout-ms}.
+	 *
+	 * @param id Account id.
+	 * @return The account or {@code null} if there is no such account.
+	 */
+	public Account load(long id) {
+		CompletableFuture<Account> result = new CompletableFuture<Account>();
+		pending.add(new PendingLookup(id, result));
+
+		try {
+			return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			result.cancel(false); // The dispatcher may still complete it - harmless
+			throw new IllegalStateException("Timed out after " + timeoutMillis + "ms waiting for account " + id, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for account " + id, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Failed to load account " + id, e.getCause());
+		}
+	}
+
+	private void dispatchLoop() {
+		List<PendingLookup> batch = new ArrayList<PendingLookup>();
+
+		while (dispatcher == Thread.currentThread()) {
+			try {
+				batch.add(pending.take());
+				long deadline = System.nanoTime() + windowNanos;
+
+				// Gather everything else that arrives within the window
+				while (batch.size() < maxBatchSize) {
+					long remaining = deadline - System.nanoTime();
+					PendingLookup next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : null;
+
+					if (next == null) {
+						pending.drainTo(batch, maxBatchSize - batch.size());
+						break;
+					}
+
+					batch.add(next);
+				}
+
+				dispatch(batch);
+			} catch (InterruptedException e) {
+				// Lookups already taken from the queue are only in the batch
+				fail(batch);
+				break;
+			} finally {
+				batch.clear();
+			}
+		}
+
+		// Don't leave anyone waiting
+		for (PendingLookup lookup = pending.poll(); lookup != null; lookup = pending.poll())
+			lookup.result.completeExceptionally(new IllegalStateException("Account loader has stopped"));
+	}
+
+	private static void fail(List<PendingLookup> batch) {
+		for (PendingLookup lookup : batch)
+			lookup.result.completeExceptionally(new IllegalStateException("Account loader has stopped"));
+	}
+
+	private void dispatch(List<PendingLookup> batch) {
+		try {
+			List<Long> ids = new ArrayList<Long>(batch.size());
+			for (PendingLookup lookup : batch)
+				ids.add(lookup.id);
+
+			Map<Long, Account> found = new HashMap<Long, Account>();
+			for (Account account : readOnlyTransaction.execute(status -> accountRepository.findByIds(ids)))
+				found.put(account.getId(), account);
+
+			for (PendingLookup lookup : batch)
+				lookup.result.complete(found.get(lookup.id));
+
+			logger.debug("Loaded {} accounts for {} lookups in one query", found.size(), batch.size());
+		} catch (RuntimeException e) {
+			for (PendingLookup lookup : batch)
+				lookup.result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * A lookup waiting to be included in a batch.
+	 */
+	private static class PendingLookup {
+		final long id;
+		final CompletableFuture<Account> result;
+
+		PendingLookup(long id, CompletableFuture<Account> result) {
+			this.id = id;
+			this.result = result;
+		}
+	}
+}
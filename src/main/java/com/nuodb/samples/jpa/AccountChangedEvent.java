@@ -0,0 +1,33 @@
+package com.nuodb.samples.jpa;
+
+/**
+ * Published by {@link AccountService} whenever an account is created or its
+ * balance changes. Listen with {@code @TransactionalEventListener} to receive
+ * it only once the change has been committed.
+ */
+public class AccountChangedEvent {
+
+	public enum Type {
+		INSERT, BALANCE
+	}
+
+	public final Type type;
+
+	public final long id;
+
+	public final String name;
+
+	public final int balance;
+
+	public AccountChangedEvent(Type type, Account account) {
+		this.type = type;
+		this.id = account.getId();
+		this.name = account.getName();
+		this.balance = account.getBalance();
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + id + " " + name + " " + balance;
+	}
+}
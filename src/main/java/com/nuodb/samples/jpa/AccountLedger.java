@@ -0,0 +1,118 @@
+package com.nuodb.samples.jpa;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Ledger mode: instead of updating {@code Accounts.balance} in place, every
+ * credit and debit is appended to {@code demo.Ledger}. Appends never contend
+ * for an account's row, however popular the account.
+ * <p>
+ * An account's current balance is {@code Accounts.balance} - a snapshot - plus
+ * the sum of its ledger entries not yet marked {@code compacted}.
+ * {@link LedgerCompactor} periodically rolls entries into the snapshot so that
+ * sum stays short. The entries themselves are kept as the account's history.
+ * <p>
+ * Each entry is inserted in the caller's transaction, so it commits or rolls
+ * back with the rest of the caller's work - a transaction that is rolled back
+ * and retried (see {@link RetryOnConflict}) cannot apply its amount twice.
+ * <p>
+ * An append that would take the balance, as the caller's transaction sees it,
+ * outside the range of an {@code INT} is rejected. Concurrent appends do not
+ * see each other, so together they can still overshoot; like
+ * {@link LedgerCompactor}, balances that do are reported clamped to the
+ * largest (or smallest) {@code INT}.
+ * Enable with {@code demo.ledger.enabled=true}. Not supported with sharding:
+ * the ledger and {@link LedgerCompactor} use the application's own database,
+ * which holds no accounts when they are sharded, so startup fails instead.
+ */
+@Component
+@ConditionalOnProperty(name = "demo.ledger.enabled", havingValue = "true")
+public class AccountLedger {
+
+	/** Inserts nothing if there is no such account. */
+	public static final String INSERT_ENTRY = "INSERT INTO demo.Ledger (account_id, amount, created) " //
+			+ "SELECT id, ?, ? FROM demo.Accounts WHERE id = ?";
+
+	public static final String SELECT_CURRENT_BALANCES = "SELECT a.id, a.name, CAST(a.balance AS BIGINT) + COALESCE(" //
+			+ "(SELECT SUM(CAST(l.amount AS BIGINT)) FROM demo.Ledger l " //
+			+ "WHERE l.compacted = FALSE AND l.account_id = a.id), 0) " //
+			+ "FROM demo.Accounts a WHERE a.id IN (%s)";
+
+	private final JdbcTemplate jdbcTemplate;
+
+	public AccountLedger(JdbcTemplate jdbcTemplate, @Value("${demo.sharding.enabled:false}") boolean sharding) {
+		if (sharding)
+			throw new IllegalStateException("demo.ledger.enabled is not supported with demo.sharding.enabled");
+
+		this.jdbcTemplate = jdbcTemplate;
+	}
+
+	/**
+	 * Append a credit (positive amount) or debit (negative amount) to the ledger.
+	 * Two statements: the insert, which also checks the account exists, and
+	 * reading back the current balance.
+	 *
+	 * @return The account with its current balance, or {@code null} if there is
+	 *         no such account.
+	 * @throws IllegalStateException If there is no transaction for the entry to
+	 *                               join.
+	 * @throws ArithmeticException   If the balance would no longer fit in an
+	 *                               {@code INT}. The caller's transaction must
+	 *                               roll back to discard the entry.
+	 */
+	public Account append(long accountId, int amount) {
+		if (!TransactionSynchronizationManager.isActualTransactionActive())
+			throw new IllegalStateException("Ledger entries must be appended in a transaction");
+
+		if (jdbcTemplate.update(INSERT_ENTRY, amount, new Timestamp(System.currentTimeMillis()), accountId) == 0)
+			return null;
+
+		List<Account> accounts = jdbcTemplate.query(String.format(SELECT_CURRENT_BALANCES, "?"), (rs, rowNum) -> {
+			Account account = new Account(rs.getString(2), Math.toIntExact(rs.getLong(3)));
+			account.setId(rs.getLong(1));
+			return account;
+		}, accountId);
+
+		return accounts.isEmpty() ? null : accounts.get(0);
+	}
+
+	/**
+	 * Current balances - snapshot plus ledger entries not yet compacted, clamped
+	 * to the range of an {@code INT}.
+	 *
+	 * @param ids Account ids.
+	 * @return Balance of each account found, by id.
+	 */
+	public Map<Long, Integer> currentBalances(Collection<Long> ids) {
+		Map<Long, Integer> balances = new HashMap<Long, Integer>();
+		List<Long> idList = new ArrayList<Long>(ids);
+
+		for (int from = 0; from < idList.size(); from += JpaAccountRepository.MAX_IDS_PER_QUERY) {
+			List<Long> chunk = idList.subList(from,
+					Math.min(from + JpaAccountRepository.MAX_IDS_PER_QUERY, idList.size()));
+			String sql = String.format(SELECT_CURRENT_BALANCES,
+					String.join(",", Collections.nCopies(chunk.size(), "?")));
+			jdbcTemplate.query(sql, rs -> {
+				balances.put(rs.getLong(1), clamp(rs.getLong(3)));
+			}, chunk.toArray());
+		}
+
+		return balances;
+	}
+
+	private static int clamp(long balance) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, balance));
+	}
+}
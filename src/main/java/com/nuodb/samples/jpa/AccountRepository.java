@@ -1,6 +1,8 @@
 package com.nuodb.samples.jpa;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * An interface for storing and retrieving accounts, typically from a persistent
@@ -16,5 +18,45 @@ public interface AccountRepository {
 
 	public Iterable<Account> findAll();
 
+	/**
+	 * Pass every account to {@code action} as it is read, without holding them
+	 * all in memory. Must be called in a transaction.
+	 */
+	public void forEachAccount(Consumer<Account> action);
+
 	public List<Account> findByNameLike(String match);
+
+	/**
+	 * Fetch the accounts with the given ids. Ids that do not exist are ignored.
+	 * 
+	 * @param ids Account ids, duplicates allowed.
+	 * @return The accounts found, in no particular order.
+	 */
+	public List<Account> findByIds(Collection<Long> ids);
+
+	/**
+	 * Fetch one page of the accounts whose balance lies in a range, ordered by
+	 * balance then id. Pages are found by key (keyset pagination), not by offset,
+	 * so every page costs the same however far into the range it is.
+	 * 
+	 * @param min          Smallest balance to include.
+	 * @param max          Largest balance to include.
+	 * @param afterBalance Balance of the last account on the previous page, or
+	 *                     {@code null} for the first page.
+	 * @param afterId      Id of the last account on the previous page, or
+	 *                     {@code null} for the first page.
+	 * @param limit        Maximum number of accounts to return.
+	 * @return The accounts found.
+	 */
+	public List<Account> findByBalanceBetween(int min, int max, Integer afterBalance, Long afterId, int limit);
+
+	/**
+	 * Add an amount to an account's balance. The account's row stays locked until
+	 * the current transaction ends.
+	 * 
+	 * @param id     Account id.
+	 * @param amount Amount to add, negative to subtract.
+	 * @return The updated account or {@code null} if there is no such account.
+	 */
+	public Account adjustBalance(long id, int amount);
 }
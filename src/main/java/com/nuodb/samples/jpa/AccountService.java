@@ -1,22 +1,82 @@
 package com.nuodb.samples.jpa;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
  * An interface for managing accounts.
+ * <p>
+ * Methods that only query the database are marked {@code readOnly}. Spring
+ * then sets Hibernate's flush mode to {@code MANUAL}, makes the session
+ * default to read-only (so no snapshots are kept for dirty checking) and marks
+ * the JDBC connection read-only for the duration of the transaction.
+ * <p>
+ * Methods that change accounts publish an {@link AccountChangedEvent} for
+ * each account changed. Those marked {@link RetryOnConflict} are re-run if
+ * they conflict with another transaction.
  * 
  * @author Paul Chapman
  */
 @Transactional
 public interface AccountService {
 
+	@Transactional(readOnly = true)
 	public long totalAccounts();
 
+	/**
+	 * Insert new accounts. Not retried on conflict: a failed attempt leaves the
+	 * generated ids set on the accounts, so repeating it would fail with
+	 * "detached entity passed to persist".
+	 */
 	public void save(List<Account> accounts);
 
+	/**
+	 * Add to an account's balance.
+	 * 
+	 * @return The updated account or {@code null} if there is no such account.
+	 */
+	@RetryOnConflict
+	public Account credit(long id, int amount);
+
+	/**
+	 * Subtract from an account's balance.
+	 * 
+	 * @return The updated account or {@code null} if there is no such account.
+	 */
+	@RetryOnConflict
+	public Account debit(long id, int amount);
+
+	@Transactional(readOnly = true)
 	public Iterable<Account> findAll();
 
+	/**
+	 * Like {@link #findAll()} but streams the accounts to {@code action} as they
+	 * are read, so there can be any number of them.
+	 */
+	@Transactional(readOnly = true)
+	public void forEachAccount(Consumer<Account> action);
+
+	@Transactional(readOnly = true)
 	public List<Account> find(String match);
+
+	@Transactional(readOnly = true)
+	public List<Account> findByIds(Collection<Long> ids);
+
+	/**
+	 * One page of accounts with balances in a range - see
+	 * {@link AccountRepository#findByBalanceBetween(int, int, Integer, Long, int)}.
+	 */
+	@Transactional(readOnly = true)
+	public List<Account> findByBalance(int min, int max, Integer afterBalance, Long afterId, int limit);
+
+	/**
+	 * Fetch a single account. Concurrent calls are coalesced into a single query
+	 * by {@link AccountBatchLoader}, which runs its own transaction.
+	 */
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public Account findById(long id);
 }
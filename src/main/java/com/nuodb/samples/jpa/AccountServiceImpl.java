@@ -1,8 +1,15 @@
 package com.nuodb.samples.jpa;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -19,6 +26,12 @@ import org.springframework.transaction.annotation.Transactional;
  * Note that this class is transactional because {@link AccountService} is
  * annotated with Spring's {@link Transactional} annotation. You could use the
  * {@code javax.transaction.Transactional} if you prefer, Spring supports both.
+ * The query methods are read-only transactions - see {@link AccountService}.
+ * <p>
+ * In ledger mode (see {@link AccountLedger}) credits and debits are appended to
+ * the ledger instead of updating the account, and accounts fetched by id have
+ * their current balance. Other queries return the balance as of the last
+ * ledger compaction.
  * 
  * @author Paul Chapman
  */
@@ -27,9 +40,20 @@ public class AccountServiceImpl implements AccountService {
 
 	private AccountRepository accountRepository;
 
+	private AccountBatchLoader accountBatchLoader;
+
+	private ApplicationEventPublisher eventPublisher;
+
+	/** Only set in ledger mode. */
+	private AccountLedger accountLedger;
+
 	@Autowired
-	public AccountServiceImpl(AccountRepository accountRepository) {
+	public AccountServiceImpl(AccountRepository accountRepository, AccountBatchLoader accountBatchLoader,
+			ApplicationEventPublisher eventPublisher, ObjectProvider<AccountLedger> accountLedger) {
 		this.accountRepository = accountRepository;
+		this.accountBatchLoader = accountBatchLoader;
+		this.eventPublisher = eventPublisher;
+		this.accountLedger = accountLedger.getIfAvailable();
 	}
 
 	@Override
@@ -42,6 +66,21 @@ public class AccountServiceImpl implements AccountService {
 	public void save(List<Account> accounts) {
 		// YOUR BUSINESS LOGIC HERE
 		accountRepository.save(accounts);
+
+		for (Account account : accounts)
+			eventPublisher.publishEvent(new AccountChangedEvent(AccountChangedEvent.Type.INSERT, account));
+	}
+
+	@Override
+	public Account credit(long id, int amount) {
+		// YOUR BUSINESS LOGIC HERE
+		return adjustBalance(id, amount);
+	}
+
+	@Override
+	public Account debit(long id, int amount) {
+		// YOUR BUSINESS LOGIC HERE
+		return adjustBalance(id, Math.negateExact(amount));
 	}
 
 	@Override
@@ -50,10 +89,69 @@ public class AccountServiceImpl implements AccountService {
 		return accountRepository.findAll();
 	}
 
+	@Override
+	public void forEachAccount(Consumer<Account> action) {
+		// YOUR BUSINESS LOGIC HERE
+		accountRepository.forEachAccount(action);
+	}
+
 	@Override
 	public List<Account> find(String match) {
 		// YOUR BUSINESS LOGIC HERE
 		return accountRepository.findByNameLike(match);
 	}
 
+	@Override
+	public List<Account> findByIds(Collection<Long> ids) {
+		// YOUR BUSINESS LOGIC HERE
+		return withCurrentBalances(accountRepository.findByIds(ids));
+	}
+
+	@Override
+	public List<Account> findByBalance(int min, int max, Integer afterBalance, Long afterId, int limit) {
+		// YOUR BUSINESS LOGIC HERE
+		return accountRepository.findByBalanceBetween(min, max, afterBalance, afterId, limit);
+	}
+
+	@Override
+	public Account findById(long id) {
+		// YOUR BUSINESS LOGIC HERE
+		Account account = accountBatchLoader.load(id);
+		return account == null ? null : withCurrentBalances(Collections.singletonList(account)).get(0);
+	}
+
+	private Account adjustBalance(long id, int amount) {
+		Account account = accountLedger == null ? accountRepository.adjustBalance(id, amount)
+				: accountLedger.append(id, amount);
+
+		if (account != null)
+			eventPublisher.publishEvent(new AccountChangedEvent(AccountChangedEvent.Type.BALANCE, account));
+
+		return account;
+	}
+
+	/**
+	 * In ledger mode, copies of the accounts with their current balances.
+	 * Otherwise the accounts unchanged.
+	 */
+	private List<Account> withCurrentBalances(List<Account> accounts) {
+		if (accountLedger == null || accounts.isEmpty())
+			return accounts;
+
+		List<Long> ids = new ArrayList<Long>(accounts.size());
+		for (Account account : accounts)
+			ids.add(account.getId());
+
+		Map<Long, Integer> balances = accountLedger.currentBalances(ids);
+		List<Account> current = new ArrayList<Account>(accounts.size());
+
+		for (Account account : accounts) {
+			Account copy = new Account(account.getName(), balances.getOrDefault(account.getId(), account.getBalance()));
+			copy.setId(account.getId());
+			current.add(copy);
+		}
+
+		return current;
+	}
+
 }
@@ -0,0 +1,368 @@
+package com.nuodb.samples.jpa;
+
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Adjusts the balance of every account in an id range - to apply interest or a
+ * fee, say - without loading any of them.
+ * <p>
+ * The range is split into chunks of {@code demo.bulk.chunk-size} ids. Each
+ * chunk is a single set-based {@code UPDATE ... WHERE id BETWEEN ? AND ?} in
+ * its own short transaction, so locks are only held on one chunk's accounts at
+ * a time. Chunks run in parallel on {@code demo.bulk.threads} threads, each
+ * using its own connection.
+ * <p>
+ * Jobs are recorded in {@code demo.BulkJobs}. Each chunk records itself in
+ * {@code demo.BulkJobChunks} in the same transaction as its update, so a chunk
+ * is either applied and recorded or neither. A job that fails or is stopped
+ * by a restart can be {@link #resume(long) resumed}, running only the chunks
+ * not yet recorded.
+ * <p>
+ * A new balance that would not fit in an {@code INT} is clamped to the
+ * largest (or smallest) {@code INT} rather than failing the chunk.
+ * <p>
+ * <b>Note:</b> The updates bypass {@link AccountService}, so no
+ * {@link AccountChangedEvent}s are published - the change feed and the name
+ * index do not see them until reloaded. {@code PERCENT} is not allowed in
+ * ledger mode, where {@code Accounts.balance} does not include the ledger
+ * entries not yet compacted. Not supported with sharding.
+ */
+@Component
+@ConditionalOnProperty(name = "demo.sharding.enabled", havingValue = "false", matchIfMissing = true)
+public class BulkBalanceJobs {
+
+	public enum Operation {
+		/** Add {@code amount} to every balance - negative for a fee. */
+		ADD("CAST(balance AS BIGINT) + ?"),
+
+		/**
+		 * Add {@code amount} basis points (hundredths of a percent) of every
+		 * balance, from {@value BulkBalanceJobs#MIN_BASIS_POINTS} to
+		 * {@value BulkBalanceJobs#MAX_BASIS_POINTS}.
+		 */
+		PERCENT("CAST(balance AS BIGINT) + CAST(balance AS BIGINT) * ? / 10000");
+
+		/** Binds the amount three times, then the first and last id. */
+		final String sql;
+
+		Operation(String newBalance) {
+			this.sql = "UPDATE demo.Accounts SET balance = CASE" //
+					+ " WHEN " + newBalance + " > " + Integer.MAX_VALUE + " THEN " + Integer.MAX_VALUE //
+					+ " WHEN " + newBalance + " < " + Integer.MIN_VALUE + " THEN " + Integer.MIN_VALUE //
+					+ " ELSE " + newBalance + " END WHERE id BETWEEN ? AND ?";
+		}
+	}
+
+	/** Largest {@code PERCENT} amount: doubles every balance. */
+	public static final int MAX_BASIS_POINTS = 10000;
+
+	/** Smallest {@code PERCENT} amount: zeroes every balance. */
+	public static final int MIN_BASIS_POINTS = -10000;
+
+	public enum State {
+		RUNNING, DONE, FAILED, STOPPED
+	}
+
+	public static final String SELECT_ID_RANGE = "SELECT MIN(id) AS min_id, MAX(id) AS max_id FROM demo.Accounts";
+
+	public static final String INSERT_JOB = "INSERT INTO demo.BulkJobs " //
+			+ "(operation, amount, min_id, max_id, chunk_size, created) VALUES (?, ?, ?, ?, ?, ?)";
+
+	public static final String SELECT_JOB = //
+			"SELECT operation, amount, min_id, max_id, chunk_size FROM demo.BulkJobs WHERE id = ?";
+
+	public static final String INSERT_CHUNK = //
+			"INSERT INTO demo.BulkJobChunks (job_id, chunk_start, row_count, completed) VALUES (?, ?, ?, ?)";
+
+	public static final String SELECT_CHUNKS = //
+			"SELECT chunk_start, row_count FROM demo.BulkJobChunks WHERE job_id = ?";
+
+	protected static final Logger logger = LoggerFactory.getLogger(BulkBalanceJobs.class);
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final TransactionTemplate transaction;
+
+	private final int chunkSize;
+
+	private final boolean ledgerEnabled;
+
+	private final ExecutorService executor;
+
+	/** Jobs run since this application started. */
+	private final Map<Long, Job> jobs = new ConcurrentHashMap<Long, Job>();
+
+	public BulkBalanceJobs(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+			@Value("${demo.bulk.chunk-size:1000}") int chunkSize, @Value("${demo.bulk.threads:4}") int threads,
+			@Value("${demo.ledger.enabled:false}") boolean ledgerEnabled) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.transaction = new TransactionTemplate(transactionManager);
+		this.chunkSize = chunkSize;
+		this.ledgerEnabled = ledgerEnabled;
+		this.executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "bulk-balance-job");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@PreDestroy
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Start adjusting balances. Returns at once - poll {@link #status(long)} for
+	 * progress.
+	 *
+	 * @param minId Lowest account id to adjust, {@code null} for the lowest
+	 *              there is.
+	 * @param maxId Highest account id to adjust, {@code null} for the highest
+	 *              there is.
+	 * @return The new job's status.
+	 * @throws IllegalArgumentException If the operation is not allowed or the
+	 *                                  amount is out of range.
+	 */
+	public synchronized Map<String, Object> start(Operation operation, int amount, Long minId, Long maxId) {
+		validate(operation, amount);
+
+		if (minId == null || maxId == null) {
+			Map<String, Object> range = jdbcTemplate.queryForMap(SELECT_ID_RANGE);
+			Number min = (Number) range.get("min_id");
+			Number max = (Number) range.get("max_id");
+
+			if (minId == null)
+				minId = min == null ? 1 : min.longValue();
+			if (maxId == null)
+				maxId = max == null ? 0 : max.longValue(); // No accounts, no chunks
+		}
+
+		Object[] args = { operation.name(), amount, minId, maxId, chunkSize,
+				new Timestamp(System.currentTimeMillis()) };
+		KeyHolder keyHolder = new GeneratedKeyHolder();
+		jdbcTemplate.update(connection -> {
+			PreparedStatement statement = connection.prepareStatement(INSERT_JOB, Statement.RETURN_GENERATED_KEYS);
+			for (int i = 0; i < args.length; i++)
+				statement.setObject(i + 1, args[i]);
+			return statement;
+		}, keyHolder);
+
+		Job job = new Job(keyHolder.getKey().longValue(), operation, amount, minId, maxId, chunkSize);
+		logger.info("Starting bulk job {}: {} {} to accounts {} to {}", job.id, operation, amount, minId, maxId);
+		run(job, new HashSet<Long>(), 0);
+		return job.status();
+	}
+
+	/**
+	 * Run the chunks of a job that have not completed.
+	 *
+	 * @return The job's status, or {@code null} if there is no such job.
+	 * @throws IllegalStateException    If the job is already running.
+	 * @throws IllegalArgumentException If the job's operation is no longer
+	 *                                  allowed.
+	 */
+	public synchronized Map<String, Object> resume(long id) {
+		Job running = jobs.get(id);
+
+		if (running != null && running.state == State.RUNNING)
+			throw new IllegalStateException("Bulk job " + id + " is already running");
+
+		Job job = load(id);
+
+		if (job == null)
+			return null;
+
+		validate(job.operation, job.amount);
+		Set<Long> completed = new HashSet<Long>();
+		AtomicLong rows = new AtomicLong();
+		jdbcTemplate.query(SELECT_CHUNKS, rs -> {
+			completed.add(rs.getLong(1));
+			rows.addAndGet(rs.getLong(2));
+		}, id);
+
+		logger.info("Resuming bulk job {}: {} of {} chunks already done", id, completed.size(), job.chunks);
+		run(job, completed, rows.get());
+		return job.status();
+	}
+
+	/**
+	 * Progress of a job: chunks and rows done, rows per second and, if it has
+	 * finished, how.
+	 *
+	 * @return {@code null} if there is no such job.
+	 */
+	public Map<String, Object> status(long id) {
+		Job job = jobs.get(id);
+
+		if (job != null)
+			return job.status();
+
+		// Run before this application started
+		Job stored = load(id);
+
+		if (stored == null)
+			return null;
+
+		AtomicLong rows = new AtomicLong();
+		jdbcTemplate.query(SELECT_CHUNKS, rs -> {
+			stored.chunksDone.incrementAndGet();
+			rows.addAndGet(rs.getLong(2));
+		}, id);
+
+		stored.previousRows = rows.get();
+		stored.state = stored.chunksDone.get() == stored.chunks ? State.DONE : State.STOPPED;
+		return stored.status();
+	}
+
+	private void validate(Operation operation, int amount) {
+		if (operation == Operation.PERCENT && ledgerEnabled)
+			throw new IllegalArgumentException("PERCENT is not supported in ledger mode");
+
+		if (operation == Operation.PERCENT && (amount < MIN_BASIS_POINTS || amount > MAX_BASIS_POINTS))
+			throw new IllegalArgumentException("PERCENT amount must be from " + MIN_BASIS_POINTS + " to "
+					+ MAX_BASIS_POINTS + " basis points, not " + amount);
+	}
+
+	private Job load(long id) {
+		List<Job> found = jdbcTemplate.query(SELECT_JOB, (rs, rowNum) -> new Job(id,
+				Operation.valueOf(rs.getString(1)), rs.getInt(2), rs.getLong(3), rs.getLong(4), rs.getInt(5)), id);
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	private void run(Job job, Set<Long> completed, long previousRows) {
+		job.chunksDone.set(completed.size());
+		job.previousRows = previousRows;
+		jobs.put(job.id, job);
+
+		List<CompletableFuture<Void>> chunks = new ArrayList<CompletableFuture<Void>>();
+
+		for (long chunkStart = job.minId; chunkStart <= job.maxId; chunkStart += job.chunkSize) {
+			long from = chunkStart;
+
+			if (!completed.contains(from))
+				chunks.add(CompletableFuture.runAsync(() -> runChunk(job, from), executor));
+		}
+
+		CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).whenComplete((done, e) -> {
+			job.finish(e);
+			logger.info("Bulk job {} {}: {}", job.id, job.state, job.status());
+		});
+	}
+
+	private void runChunk(Job job, long from) {
+		if (job.state != State.RUNNING)
+			return; // Another chunk failed - leave the rest for resume
+
+		long to = Math.min(job.maxId, from + job.chunkSize - 1);
+
+		try {
+			int rows = transaction.execute(status -> {
+				int updated = jdbcTemplate.update(job.operation.sql, job.amount, job.amount, job.amount, from, to);
+				jdbcTemplate.update(INSERT_CHUNK, job.id, from, updated, new Timestamp(System.currentTimeMillis()));
+				return updated;
+			});
+
+			job.rows.addAndGet(rows);
+			job.chunksDone.incrementAndGet();
+		} catch (RuntimeException e) {
+			job.state = State.FAILED;
+			throw e;
+		}
+	}
+
+	private static class Job {
+		final long id;
+		final Operation operation;
+		final int amount;
+		final long minId;
+		final long maxId;
+		final int chunkSize;
+		final long chunks;
+		final long startMillis = System.currentTimeMillis();
+
+		final AtomicInteger chunksDone = new AtomicInteger();
+
+		/** Rows updated by this run. */
+		final AtomicLong rows = new AtomicLong();
+
+		/** Rows updated by earlier runs. */
+		volatile long previousRows = 0;
+
+		volatile State state = State.RUNNING;
+		volatile long endMillis = 0;
+		volatile String error;
+
+		Job(long id, Operation operation, int amount, long minId, long maxId, int chunkSize) {
+			this.id = id;
+			this.operation = operation;
+			this.amount = amount;
+			this.minId = minId;
+			this.maxId = maxId;
+			this.chunkSize = chunkSize;
+			this.chunks = maxId < minId ? 0 : (maxId - minId) / chunkSize + 1;
+		}
+
+		void finish(Throwable e) {
+			endMillis = System.currentTimeMillis();
+
+			if (e == null) {
+				state = State.DONE;
+			} else {
+				state = State.FAILED;
+				error = (e.getCause() != null ? e.getCause() : e).toString();
+			}
+		}
+
+		Map<String, Object> status() {
+			long elapsed = (endMillis == 0 ? System.currentTimeMillis() : endMillis) - startMillis;
+
+			Map<String, Object> status = new LinkedHashMap<String, Object>();
+			status.put("id", id);
+			status.put("operation", operation);
+			status.put("amount", amount);
+			status.put("minId", minId);
+			status.put("maxId", maxId);
+			status.put("state", state);
+			status.put("chunks", chunks);
+			status.put("chunksDone", chunksDone.get());
+			status.put("rows", previousRows + rows.get());
+
+			if (state == State.RUNNING || endMillis != 0) {
+				status.put("elapsedMillis", elapsed);
+				status.put("rowsPerSecond", elapsed == 0 ? 0 : rows.get() * 1000 / elapsed);
+			}
+
+			if (error != null)
+				status.put("error", error);
+
+			return status;
+		}
+	}
+}
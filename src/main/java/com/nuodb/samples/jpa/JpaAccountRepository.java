@@ -1,25 +1,67 @@
 package com.nuodb.samples.jpa;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
 import javax.persistence.TypedQuery;
 
+import org.hibernate.annotations.QueryHints;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
 /**
- * Handles storing and retrieving accounts from NuoDB using JPA.
+ * Handles storing and retrieving accounts from NuoDB using JPA. Replaced by
+ * {@link ShardedAccountRepository} if {@code demo.sharding.enabled=true}.
+ * <p>
+ * Queries returning entities set Hibernate's {@link QueryHints#READ_ONLY} hint
+ * so the loaded accounts are not snapshotted for dirty checking, even if the
+ * caller's transaction is not itself read-only. Modify an account returned by
+ * these queries and the change will <i>not</i> be flushed.
  * 
  * @author Paul Chapman
  */
 @Repository
+@ConditionalOnProperty(name = "demo.sharding.enabled", havingValue = "false", matchIfMissing = true)
 public class JpaAccountRepository implements AccountRepository {
 
 	public static final String SELECT_ACCOUNTS = "SELECT a FROM Account a";
 
 	public static final String SELECT_NUM_ACCOUNTS = "SELECT count(*) FROM Account a";
 
+	/**
+	 * Maximum number of ids to put in a single {@code IN (...)} list. Larger
+	 * requests are split into several queries.
+	 */
+	public static final int MAX_IDS_PER_QUERY = 500;
+
+	/**
+	 * Rows fetched per round trip when scrolling through all accounts.
+	 */
+	public static final int FETCH_SIZE = 1000;
+
+	/**
+	 * Intended to use index {@code idx_accounts_balance_id} - see
+	 * {@code schema-xxx.sql}. Not verified against any database's plan; see the
+	 * README for how to check.
+	 */
+	public static final String SELECT_ACCOUNTS_BY_BALANCE = SELECT_ACCOUNTS //
+			+ " WHERE a.balance BETWEEN ?1 AND ?2 ORDER BY a.balance, a.id";
+
+	/**
+	 * Next page of {@link #SELECT_ACCOUNTS_BY_BALANCE}. The range starts at the
+	 * last balance seen so the index scan can start there too.
+	 */
+	public static final String SELECT_ACCOUNTS_BY_BALANCE_AFTER = SELECT_ACCOUNTS //
+			+ " WHERE a.balance BETWEEN ?1 AND ?2 AND (a.balance > ?1 OR a.id > ?3)" //
+			+ " ORDER BY a.balance, a.id";
+
 	private EntityManager entityManager;
 
 	/**
@@ -63,9 +105,30 @@ public class JpaAccountRepository implements AccountRepository {
 	public Iterable<Account> findAll() {
 		TypedQuery<Account> q = //
 				entityManager.createQuery(SELECT_ACCOUNTS, Account.class);
+		q.setHint(QueryHints.READ_ONLY, true);
 		return q.getResultList();
 	}
 
+	/**
+	 * Scrolls through the results rather than loading them all. Each account is
+	 * detached once {@code action} is done with it, so the persistence context
+	 * does not grow either.
+	 */
+	@Override
+	public void forEachAccount(Consumer<Account> action) {
+		TypedQuery<Account> q = //
+				entityManager.createQuery(SELECT_ACCOUNTS, Account.class);
+		q.setHint(QueryHints.READ_ONLY, true);
+		q.setHint(QueryHints.FETCH_SIZE, FETCH_SIZE);
+
+		try (Stream<Account> accounts = q.getResultStream()) {
+			accounts.forEach(account -> {
+				action.accept(account);
+				entityManager.detach(account);
+			});
+		}
+	}
+
 	@Override
 	public List<Account> findByNameLike(String match) {
 		match = ("%" + match + '%').toUpperCase();
@@ -74,7 +137,56 @@ public class JpaAccountRepository implements AccountRepository {
 				entityManager.createQuery(SELECT_ACCOUNTS + " WHERE upper(name) LIKE ?1", //
 						Account.class);
 		q.setParameter(1, match);
+		q.setHint(QueryHints.READ_ONLY, true);
+		return q.getResultList();
+	}
+
+	@Override
+	public List<Account> findByIds(Collection<Long> ids) {
+		List<Long> distinctIds = new ArrayList<Long>(new LinkedHashSet<Long>(ids));
+		List<Account> accounts = new ArrayList<Account>(distinctIds.size());
+
+		for (int from = 0; from < distinctIds.size(); from += MAX_IDS_PER_QUERY) {
+			int to = Math.min(from + MAX_IDS_PER_QUERY, distinctIds.size());
+
+			TypedQuery<Account> q = //
+					entityManager.createQuery(SELECT_ACCOUNTS + " WHERE a.id IN ?1", Account.class);
+			q.setParameter(1, distinctIds.subList(from, to));
+			q.setHint(QueryHints.READ_ONLY, true);
+			accounts.addAll(q.getResultList());
+		}
+
+		return accounts;
+	}
+
+	@Override
+	public List<Account> findByBalanceBetween(int min, int max, Integer afterBalance, Long afterId, int limit) {
+		TypedQuery<Account> q;
+
+		if (afterBalance == null || afterId == null) {
+			q = entityManager.createQuery(SELECT_ACCOUNTS_BY_BALANCE, Account.class);
+			q.setParameter(1, min);
+		} else {
+			q = entityManager.createQuery(SELECT_ACCOUNTS_BY_BALANCE_AFTER, Account.class);
+			q.setParameter(1, Math.max(min, afterBalance));
+			q.setParameter(3, afterId);
+		}
+
+		q.setParameter(2, max);
+		q.setMaxResults(limit);
+		q.setHint(QueryHints.READ_ONLY, true);
 		return q.getResultList();
 	}
 
+	@Override
+	public Account adjustBalance(long id, int amount) {
+		// SELECT ... FOR UPDATE, so concurrent adjustments don't lose updates
+		Account account = entityManager.find(Account.class, id, LockModeType.PESSIMISTIC_WRITE);
+
+		if (account != null)
+			account.credit(amount); // Flushed on commit by dirty checking
+
+		return account;
+	}
+
 }
@@ -0,0 +1,117 @@
+package com.nuodb.samples.jpa;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Rolls {@link AccountLedger} entries into the account balance snapshots, so
+ * working out a current balance only has to add up a few recent entries.
+ * <p>
+ * Entries are appended in their callers' transactions, so they do not commit
+ * in id order and no id or timestamp can mark "everything before here is
+ * committed". Instead each entry records whether it has been compacted. For
+ * each range of {@code demo.ledger.compact-chunk} accounts, in one short
+ * transaction, the compactor locks the entries it can see that are not yet
+ * compacted, adds them to their accounts' balances and marks exactly those
+ * entries compacted. An entry committed meanwhile is simply left for the next
+ * run.
+ * <p>
+ * A balance that would no longer fit in an {@code INT} is clamped to the
+ * largest (or smallest) {@code INT}, as {@link BulkBalanceJobs} does, rather
+ * than failing the chunk on every run.
+ */
+@Component
+@ConditionalOnProperty(name = "demo.ledger.enabled", havingValue = "true")
+public class LedgerCompactor {
+
+	public static final String SELECT_ACCOUNT_RANGE = "SELECT MIN(account_id) AS min_id, MAX(account_id) AS max_id "
+			+ "FROM demo.Ledger WHERE compacted = FALSE";
+
+	public static final String SELECT_PENDING_ENTRIES = "SELECT id, account_id, amount FROM demo.Ledger " //
+			+ "WHERE compacted = FALSE AND account_id BETWEEN ? AND ? FOR UPDATE";
+
+	/** Binds the amount three times, then the account id. */
+	public static final String ADD_TO_BALANCE = "UPDATE demo.Accounts SET balance = CASE" //
+			+ " WHEN CAST(balance AS BIGINT) + ? > " + Integer.MAX_VALUE + " THEN " + Integer.MAX_VALUE //
+			+ " WHEN CAST(balance AS BIGINT) + ? < " + Integer.MIN_VALUE + " THEN " + Integer.MIN_VALUE //
+			+ " ELSE CAST(balance AS BIGINT) + ? END WHERE id = ?";
+
+	public static final String MARK_COMPACTED = "UPDATE demo.Ledger SET compacted = TRUE WHERE id = ?";
+
+	protected static final Logger logger = LoggerFactory.getLogger(LedgerCompactor.class);
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final TransactionTemplate transaction;
+
+	private final int chunkSize;
+
+	public LedgerCompactor(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+			@Value("${demo.ledger.compact-chunk:1000}") int chunkSize) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.transaction = new TransactionTemplate(transactionManager);
+		this.chunkSize = chunkSize;
+	}
+
+	@Scheduled(initialDelayString = "${demo.ledger.compact-ms:5000}", //
+			fixedDelayString = "${demo.ledger.compact-ms:5000}")
+	public synchronized void compact() {
+		Map<String, Object> range = jdbcTemplate.queryForMap(SELECT_ACCOUNT_RANGE);
+
+		if (range.get("min_id") == null)
+			return; // Nothing to compact
+
+		long low = ((Number) range.get("min_id")).longValue();
+		long high = ((Number) range.get("max_id")).longValue();
+		long start = System.currentTimeMillis();
+		int entries = 0;
+
+		for (long chunkStart = low; chunkStart <= high; chunkStart += chunkSize) {
+			long from = chunkStart;
+			long to = Math.min(high, chunkStart + chunkSize - 1);
+			entries += transaction.execute(status -> compact(from, to));
+		}
+
+		logger.info("Compacted {} ledger entries in {}ms", entries, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Compact the pending entries of a range of accounts. Must run in a
+	 * transaction, so the balances and the entries marked compacted change
+	 * together.
+	 *
+	 * @return Number of entries compacted.
+	 */
+	private int compact(long fromAccountId, long toAccountId) {
+		List<Object[]> compacted = new ArrayList<Object[]>();
+		Map<Long, Long> amounts = new HashMap<Long, Long>();
+
+		jdbcTemplate.query(SELECT_PENDING_ENTRIES, rs -> {
+			compacted.add(new Object[] { rs.getLong(1) });
+			amounts.merge(rs.getLong(2), rs.getLong(3), Long::sum);
+		}, fromAccountId, toAccountId);
+
+		if (compacted.isEmpty())
+			return 0;
+
+		List<Object[]> balances = new ArrayList<Object[]>(amounts.size());
+		for (Map.Entry<Long, Long> amount : amounts.entrySet())
+			balances.add(new Object[] { amount.getValue(), amount.getValue(), amount.getValue(), amount.getKey() });
+
+		jdbcTemplate.batchUpdate(ADD_TO_BALANCE, balances);
+		jdbcTemplate.batchUpdate(MARK_COMPACTED, compacted);
+		return compacted.size();
+	}
+}
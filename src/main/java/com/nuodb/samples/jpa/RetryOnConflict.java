@@ -0,0 +1,22 @@
+package com.nuodb.samples.jpa;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a transactional method whose <i>whole</i> transaction should be run
+ * again if it fails because of a write conflict or lock timeout - see
+ * {@link TransactionRetryAspect}. The method must be safe to repeat - in
+ * particular it must not modify its arguments, such as entities passed to
+ * {@code persist()}, in ways a rolled back transaction does not undo.
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD, ElementType.TYPE })
+public @interface RetryOnConflict {
+}
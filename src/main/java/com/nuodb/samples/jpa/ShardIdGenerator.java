@@ -0,0 +1,62 @@
+package com.nuodb.samples.jpa;
+
+/**
+ * Allocates account ids that are unique across all shards and all application
+ * instances, without asking any database.
+ * <p>
+ * Ids are built like Twitter's Snowflake ids: milliseconds since
+ * {@link #EPOCH} (41 bits), node id (10 bits) and a per-millisecond sequence
+ * (12 bits). Each application instance must be given a different node id.
+ * Ids increase over time, so ordering by id is roughly ordering by creation.
+ * <p>
+ * They are well above 2<sup>53</sup>, so JavaScript clients cannot hold them
+ * as numbers: {@code JSON.parse} silently rounds them to a different id.
+ */
+public class ShardIdGenerator {
+
+	/**
+	 * 2020-01-01T00:00:00Z - ids are good for 69 years after this.
+	 */
+	public static final long EPOCH = 1577836800000L;
+
+	private static final int NODE_BITS = 10;
+
+	private static final int SEQUENCE_BITS = 12;
+
+	private static final long MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+
+	private final long nodeId;
+
+	private long lastMillis = -1;
+
+	private long sequence = 0;
+
+	public ShardIdGenerator(int nodeId) {
+		if (nodeId < 0 || nodeId >= (1 << NODE_BITS))
+			throw new IllegalArgumentException("Node id must be between 0 and " + ((1 << NODE_BITS) - 1));
+
+		this.nodeId = nodeId;
+	}
+
+	public synchronized long nextId() {
+		long now = System.currentTimeMillis();
+
+		if (now < lastMillis)
+			now = lastMillis; // Clock went backwards, carry on from where we were
+
+		if (now == lastMillis) {
+			sequence = (sequence + 1) & MAX_SEQUENCE;
+
+			if (sequence == 0) {
+				// Used up this millisecond, wait for the next
+				while (now <= lastMillis)
+					now = System.currentTimeMillis();
+			}
+		} else {
+			sequence = 0;
+		}
+
+		lastMillis = now;
+		return ((now - EPOCH) << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | sequence;
+	}
+}
@@ -0,0 +1,477 @@
+package com.nuodb.samples.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Spreads accounts across several databases (shards), chosen by a hash of the
+ * account id. Enable by setting {@code demo.sharding.enabled=true} and listing
+ * the shards' JDBC URLs in {@code demo.sharding.urls}. The defaults are three
+ * H2 in-memory databases, so sharding can be tried without NuoDB.
+ * <p>
+ * Ids are allocated by a {@link ShardIdGenerator} so they are unique across
+ * shards. Lookups by id go to one shard. Other queries are sent to every shard
+ * in parallel and the sorted results are merged. A page of a range query asks
+ * each shard for at most the page size and stops merging once the page is
+ * full. {@link #findAll()} and {@link #findByNameLike(String)} return every
+ * match: each shard is read {@code demo.sharding.page-size} rows at a time, as
+ * the merge needs them.
+ * <p>
+ * <b>Note:</b> The shards have their own connection pools and do not take part
+ * in Spring-managed transactions. {@link #save(List)} inserts into each shard
+ * in a transaction of that shard's own. If any shard fails, the accounts
+ * already committed to the other shards are deleted again before the error is
+ * rethrown - until then they are visible to other queries, and if the delete
+ * fails too they stay (an error is logged listing them).
+ */
+@Repository
+@ConditionalOnProperty(name = "demo.sharding.enabled", havingValue = "true")
+public class ShardedAccountRepository implements AccountRepository {
+
+	public static final String SELECT_ACCOUNTS = "SELECT id, name, balance FROM demo.Accounts";
+
+	public static final String INSERT_ACCOUNT = "INSERT INTO demo.Accounts (id, name, balance) VALUES (?, ?, ?)";
+
+	public static final String DELETE_ACCOUNT = "DELETE FROM demo.Accounts WHERE id = ?";
+
+	public static final String UPDATE_BALANCE = "UPDATE demo.Accounts SET balance = ? WHERE id = ?";
+
+	protected static final Logger logger = LoggerFactory.getLogger(ShardedAccountRepository.class);
+
+	private static final RowMapper<Account> ACCOUNT_MAPPER = (rs, rowNum) -> {
+		Account account = new Account(rs.getString(2), rs.getInt(3));
+		account.setId(rs.getLong(1));
+		return account;
+	};
+
+	private static final Comparator<Account> BY_ID = Comparator.comparing(Account::getId);
+
+	private static final Comparator<Account> BY_BALANCE_AND_ID = Comparator.comparingInt(Account::getBalance)
+			.thenComparing(Account::getId);
+
+	private final List<HikariDataSource> dataSources = new ArrayList<HikariDataSource>();
+
+	private final List<JdbcTemplate> shards = new ArrayList<JdbcTemplate>();
+
+	/** Local transactions on each shard, in the same order as {@link #shards}. */
+	private final List<TransactionTemplate> shardTransactions = new ArrayList<TransactionTemplate>();
+
+	private final ShardIdGenerator idGenerator;
+
+	private final int pageSize;
+
+	private final ExecutorService executor;
+
+	public ShardedAccountRepository(
+			@Value("${demo.sharding.urls:jdbc:h2:mem:shard0;DB_CLOSE_DELAY=-1,"
+					+ "jdbc:h2:mem:shard1;DB_CLOSE_DELAY=-1,jdbc:h2:mem:shard2;DB_CLOSE_DELAY=-1}") String[] urls,
+			@Value("${demo.sharding.username:${spring.datasource.username}}") String username,
+			@Value("${demo.sharding.password:${spring.datasource.password}}") String password,
+			@Value("${demo.sharding.pool-size:5}") int poolSize,
+			@Value("${demo.sharding.node-id:0}") int nodeId,
+			@Value("${demo.sharding.page-size:1000}") int pageSize,
+			@Value("${demo.sharding.schema:classpath:schema-shard-${spring.datasource.platform}.sql}") Resource schema) {
+		this.idGenerator = new ShardIdGenerator(nodeId);
+		this.pageSize = pageSize;
+		this.executor = Executors.newFixedThreadPool(2 * urls.length, r -> {
+			Thread thread = new Thread(r, "account-shard-query");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		for (String url : urls) {
+			HikariConfig config = new HikariConfig();
+			config.setJdbcUrl(url.trim());
+			config.setUsername(username);
+			config.setPassword(password);
+			config.setMaximumPoolSize(poolSize);
+			config.setPoolName("shard-" + shards.size());
+
+			HikariDataSource dataSource = new HikariDataSource(config);
+			DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(schema), dataSource);
+			dataSources.add(dataSource);
+			shards.add(new JdbcTemplate(dataSource));
+			shardTransactions.add(new TransactionTemplate(new DataSourceTransactionManager(dataSource)));
+		}
+
+		logger.info("Accounts sharded across {} databases", shards.size());
+	}
+
+	@PreDestroy
+	public void close() {
+		executor.shutdownNow();
+
+		for (HikariDataSource dataSource : dataSources)
+			dataSource.close();
+	}
+
+	@Override
+	public long count() {
+		return scatter(shard -> shard.queryForObject("SELECT COUNT(*) FROM demo.Accounts", Long.class)) //
+				.stream().mapToLong(Long::longValue).sum();
+	}
+
+	@Override
+	public void save(List<Account> accounts) {
+		List<List<Object[]>> rows = new ArrayList<List<Object[]>>();
+		for (int i = 0; i < shards.size(); i++)
+			rows.add(new ArrayList<Object[]>());
+
+		for (Account account : accounts) {
+			account.setId(idGenerator.nextId());
+			rows.get(shardOf(account.getId())) //
+					.add(new Object[] { account.getId(), account.getName(), account.getBalance() });
+		}
+
+		List<Integer> shardIndexes = new ArrayList<Integer>();
+		List<CompletableFuture<int[]>> inserts = new ArrayList<CompletableFuture<int[]>>();
+		for (int i = 0; i < shards.size(); i++) {
+			JdbcTemplate shard = shards.get(i);
+			TransactionTemplate transaction = shardTransactions.get(i);
+			List<Object[]> shardRows = rows.get(i);
+
+			if (!shardRows.isEmpty()) {
+				shardIndexes.add(i);
+				inserts.add(CompletableFuture.supplyAsync(
+						() -> transaction.execute(status -> shard.batchUpdate(INSERT_ACCOUNT, shardRows)), executor));
+			}
+		}
+
+		// Wait for every shard, not just until the first failure, so we know which
+		// ones committed
+		CompletableFuture.allOf(inserts.toArray(new CompletableFuture<?>[0])) //
+				.handle((done, e) -> null).join();
+
+		RuntimeException failure = null;
+		List<Integer> committed = new ArrayList<Integer>();
+
+		for (int i = 0; i < inserts.size(); i++) {
+			try {
+				inserts.get(i).join();
+				committed.add(shardIndexes.get(i));
+			} catch (CompletionException e) {
+				RuntimeException cause = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+						: e;
+
+				if (failure == null)
+					failure = cause;
+				else
+					failure.addSuppressed(cause);
+			}
+		}
+
+		if (failure != null) {
+			undoInserts(committed, rows);
+			throw failure;
+		}
+	}
+
+	/**
+	 * Compensate for a {@link #save(List)} that failed on some shards by deleting
+	 * the accounts it committed to the others.
+	 */
+	private void undoInserts(List<Integer> committed, List<List<Object[]>> rows) {
+		for (int i : committed) {
+			List<Object> ids = new ArrayList<Object>();
+			List<Object[]> args = new ArrayList<Object[]>();
+
+			for (Object[] row : rows.get(i)) {
+				ids.add(row[0]);
+				args.add(new Object[] { row[0] });
+			}
+
+			try {
+				shards.get(i).batchUpdate(DELETE_ACCOUNT, args);
+			} catch (RuntimeException e) {
+				logger.error("Could not undo partial save - accounts " + ids + " remain on shard " + i, e);
+			}
+		}
+	}
+
+	@Override
+	public Iterable<Account> findAll() {
+		return scan(SELECT_ACCOUNTS + " WHERE id > ? ORDER BY id LIMIT ?");
+	}
+
+	@Override
+	public void forEachAccount(Consumer<Account> action) {
+		findAll().forEach(action);
+	}
+
+	@Override
+	public List<Account> findByNameLike(String match) {
+		match = ("%" + match + '%').toUpperCase();
+
+		List<Account> accounts = new ArrayList<Account>();
+		for (Account account : scan(SELECT_ACCOUNTS + " WHERE UPPER(name) LIKE ? AND id > ? ORDER BY id LIMIT ?",
+				match))
+			accounts.add(account);
+
+		return accounts;
+	}
+
+	@Override
+	public List<Account> findByIds(Collection<Long> ids) {
+		List<List<Long>> idsByShard = new ArrayList<List<Long>>();
+		for (int i = 0; i < shards.size(); i++)
+			idsByShard.add(new ArrayList<Long>());
+
+		for (Long id : new LinkedHashSet<Long>(ids))
+			idsByShard.get(shardOf(id)).add(id);
+
+		List<CompletableFuture<List<Account>>> queries = new ArrayList<CompletableFuture<List<Account>>>();
+		for (int i = 0; i < shards.size(); i++) {
+			JdbcTemplate shard = shards.get(i);
+			List<Long> shardIds = idsByShard.get(i);
+
+			for (int from = 0; from < shardIds.size(); from += JpaAccountRepository.MAX_IDS_PER_QUERY) {
+				List<Long> chunk = shardIds.subList(from,
+						Math.min(from + JpaAccountRepository.MAX_IDS_PER_QUERY, shardIds.size()));
+				String sql = SELECT_ACCOUNTS + " WHERE id IN (" //
+						+ String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+				queries.add(CompletableFuture.supplyAsync(() -> shard.query(sql, ACCOUNT_MAPPER, chunk.toArray()),
+						executor));
+			}
+		}
+
+		List<Account> accounts = new ArrayList<Account>();
+		for (List<Account> found : join(queries))
+			accounts.addAll(found);
+
+		return accounts;
+	}
+
+	@Override
+	public List<Account> findByBalanceBetween(int min, int max, Integer afterBalance, Long afterId, int limit) {
+		if (afterBalance == null || afterId == null)
+			return gather(SELECT_ACCOUNTS + " WHERE balance BETWEEN ? AND ? ORDER BY balance, id LIMIT ?",
+					BY_BALANCE_AND_ID, limit, min, max, limit);
+
+		int from = Math.max(min, afterBalance);
+		return gather(SELECT_ACCOUNTS + " WHERE balance BETWEEN ? AND ? AND (balance > ? OR id > ?)"
+				+ " ORDER BY balance, id LIMIT ?", BY_BALANCE_AND_ID, limit, from, max, from, afterId, limit);
+	}
+
+	/**
+	 * The caller's transaction does not span shards, so the row is locked, read
+	 * and updated in one transaction on the account's shard. Either the whole
+	 * adjustment commits or none of it does, so a retried call cannot apply it
+	 * twice.
+	 */
+	@Override
+	public Account adjustBalance(long id, int amount) {
+		int shard = shardOf(id);
+		JdbcTemplate jdbcTemplate = shards.get(shard);
+
+		return shardTransactions.get(shard).execute(status -> {
+			List<Account> accounts = jdbcTemplate.query(SELECT_ACCOUNTS + " WHERE id = ? FOR UPDATE",
+					ACCOUNT_MAPPER, id);
+
+			if (accounts.isEmpty())
+				return null;
+
+			Account account = accounts.get(0);
+			account.credit(amount); // Throws, rolling back, if the balance overflows
+			jdbcTemplate.update(UPDATE_BALANCE, account.getBalance(), id);
+			return account;
+		});
+	}
+
+	/**
+	 * Which shard an account belongs to. The id is hashed first because the low
+	 * bits of generated ids are often the same.
+	 */
+	int shardOf(long id) {
+		// Murmur3 64-bit finalizer
+		long h = id;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) Math.floorMod(h, (long) shards.size());
+	}
+
+	/**
+	 * Run the same query on every shard in parallel, then merge the results.
+	 * Each shard's results must already be sorted by {@code order}.
+	 *
+	 * @param limit Most accounts to return.
+	 */
+	private List<Account> gather(String sql, Comparator<Account> order, int limit, Object... args) {
+		List<Iterator<Account>> results = new ArrayList<Iterator<Account>>();
+		for (List<Account> result : scatter(shard -> shard.query(sql, ACCOUNT_MAPPER, args)))
+			results.add(result.iterator());
+
+		List<Account> merged = new ArrayList<Account>();
+		for (Iterator<Account> i = merge(results, order); merged.size() < limit && i.hasNext();)
+			merged.add(i.next());
+
+		return merged;
+	}
+
+	/**
+	 * Every account matching a query on any shard, in id order, read a page at a
+	 * time. The query must end {@code id > ? ORDER BY id LIMIT ?} - the last id
+	 * read and the page size are added to {@code args}. The first page from each
+	 * shard is fetched in parallel, the rest when the merge reaches them.
+	 */
+	private Iterable<Account> scan(String sql, Object... args) {
+		return () -> merge(scatter(shard -> new ShardScan(shard, sql, args)), BY_ID);
+	}
+
+	private <T> List<T> scatter(Function<JdbcTemplate, T> query) {
+		List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>();
+
+		for (JdbcTemplate shard : shards)
+			futures.add(CompletableFuture.supplyAsync(() -> query.apply(shard), executor));
+
+		return join(futures);
+	}
+
+	/**
+	 * Lazy k-way merge of sorted iterators.
+	 */
+	static Iterator<Account> merge(List<? extends Iterator<Account>> sorted, Comparator<Account> order) {
+		PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>((a, b) -> order.compare(a.head, b.head));
+
+		for (Iterator<Account> iterator : sorted) {
+			if (iterator.hasNext())
+				heads.add(new Cursor(iterator));
+		}
+
+		return new Iterator<Account>() {
+			@Override
+			public boolean hasNext() {
+				return !heads.isEmpty();
+			}
+
+			@Override
+			public Account next() {
+				Cursor cursor = heads.poll();
+
+				if (cursor == null)
+					throw new NoSuchElementException();
+
+				Account account = cursor.head;
+
+				if (cursor.advance())
+					heads.add(cursor);
+
+				return account;
+			}
+		};
+	}
+
+	private static <T> List<T> join(List<CompletableFuture<T>> futures) {
+		List<T> results = new ArrayList<T>(futures.size());
+
+		try {
+			for (CompletableFuture<T> future : futures)
+				results.add(future.join());
+		} catch (CompletionException e) {
+			// Rethrow the shard's own exception, usually a DataAccessException
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+
+		return results;
+	}
+
+	private static class Cursor {
+		final Iterator<Account> iterator;
+		Account head;
+
+		Cursor(Iterator<Account> iterator) {
+			this.iterator = iterator;
+			this.head = iterator.next();
+		}
+
+		boolean advance() {
+			if (!iterator.hasNext())
+				return false;
+
+			head = iterator.next();
+			return true;
+		}
+	}
+
+	/**
+	 * Reads one shard's results a page at a time, using the last id seen as the
+	 * key for the next page.
+	 */
+	private class ShardScan implements Iterator<Account> {
+		final JdbcTemplate shard;
+		final String sql;
+		final Object[] args;
+
+		List<Account> page;
+		int index = 0;
+		long lastId = Long.MIN_VALUE;
+
+		ShardScan(JdbcTemplate shard, String sql, Object[] args) {
+			this.shard = shard;
+			this.sql = sql;
+			this.args = Arrays.copyOf(args, args.length + 2);
+			fetch();
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (index == page.size() && page.size() == pageSize)
+				fetch(); // Page was full, there may be more
+
+			return index < page.size();
+		}
+
+		@Override
+		public Account next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			Account account = page.get(index++);
+			lastId = account.getId();
+			return account;
+		}
+
+		private void fetch() {
+			args[args.length - 2] = lastId;
+			args[args.length - 1] = pageSize;
+			page = shard.query(sql, ACCOUNT_MAPPER, args);
+			index = 0;
+		}
+	}
+}
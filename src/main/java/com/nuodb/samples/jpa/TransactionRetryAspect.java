@@ -0,0 +1,202 @@
+package com.nuodb.samples.jpa;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.core.annotation.Order;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Re-runs {@link RetryOnConflict} methods of {@link AccountService} when their
+ * transaction fails because of a conflict with another transaction.
+ * <p>
+ * NuoDB reports write-write conflicts as errors the client is expected to
+ * retry. A failure is retryable if Spring translated it to a
+ * {@link ConcurrencyFailureException} (deadlocks, lock timeouts, optimistic
+ * locking failures) or if any {@link SQLException} in its cause chain has a
+ * SQL state in class {@code 40} (transaction rollback) or listed in
+ * {@code demo.retry.sql-states}. Lock timeouts reported only by SQL state,
+ * such as H2's {@code HYT00}, are not retried unless listed there - a timed out
+ * statement may have been the one holding things up.
+ * <p>
+ * This aspect is ordered before Spring's transaction interceptor so each
+ * attempt is a new transaction. If a transaction is already active the method
+ * is just called - only the outermost transaction can be retried. Waits
+ * between attempts use exponential backoff with full jitter. To stop retries
+ * piling more load onto a struggling database, retries also spend from a
+ * budget that successful first attempts refill.
+ */
+@Aspect
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class TransactionRetryAspect {
+
+	protected static final Logger logger = LoggerFactory.getLogger(TransactionRetryAspect.class);
+
+	private final int maxAttempts;
+
+	private final long initialBackoffMillis;
+
+	private final long maxBackoffMillis;
+
+	private final Set<String> retryableSqlStates;
+
+	private final RetryBudget budget;
+
+	private final Map<String, MethodStats> stats = new ConcurrentHashMap<String, MethodStats>();
+
+	public TransactionRetryAspect(@Value("${demo.retry.max-attempts:5}") int maxAttempts,
+			@Value("${demo.retry.initial-backoff-ms:5}") long initialBackoffMillis,
+			@Value("${demo.retry.max-backoff-ms:500}") long maxBackoffMillis,
+			@Value("${demo.retry.sql-states:40001,40P01}") String[] retryableSqlStates,
+			@Value("${demo.retry.budget-ratio:0.2}") double budgetRatio) {
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.retryableSqlStates = new HashSet<String>(Arrays.asList(retryableSqlStates));
+		this.budget = new RetryBudget(budgetRatio, 10 * maxAttempts);
+	}
+
+	@Around("execution(public * com.nuodb.samples.jpa.AccountService+.*(..))")
+	public Object retry(ProceedingJoinPoint joinPoint) throws Throwable {
+		Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+
+		if (TransactionSynchronizationManager.isActualTransactionActive() || !isRetryable(method, joinPoint))
+			return joinPoint.proceed();
+
+		MethodStats methodStats = stats.computeIfAbsent(method.getName(), name -> new MethodStats());
+		methodStats.calls.incrementAndGet();
+
+		for (int attempt = 1;; attempt++) {
+			try {
+				Object result = joinPoint.proceed();
+
+				if (attempt == 1)
+					budget.deposit();
+
+				return result;
+			} catch (RuntimeException e) {
+				if (!isConflict(e))
+					throw e;
+
+				methodStats.conflicts.incrementAndGet();
+
+				if (attempt >= maxAttempts || !budget.withdraw()) {
+					methodStats.exhausted.incrementAndGet();
+					logger.warn("Giving up on {} after {} attempt(s): {}", method.getName(), attempt, e.toString());
+					throw e;
+				}
+
+				methodStats.retries.incrementAndGet();
+				long cap = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20));
+				long backoff = ThreadLocalRandom.current().nextLong(cap + 1);
+				logger.debug("Conflict in {}, attempt {} - retrying in {}ms", method.getName(), attempt, backoff);
+				Thread.sleep(backoff);
+			}
+		}
+	}
+
+	/**
+	 * Conflict, retry and give-up counts for each method.
+	 */
+	public Map<String, Object> stats() {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("retryBudget", budget.available());
+
+		for (Map.Entry<String, MethodStats> entry : stats.entrySet())
+			result.put(entry.getKey(), entry.getValue().toMap());
+
+		return result;
+	}
+
+	private boolean isRetryable(Method method, ProceedingJoinPoint joinPoint) {
+		return AnnotationUtils.findAnnotation(method, RetryOnConflict.class) != null
+				|| AnnotationUtils.findAnnotation(joinPoint.getTarget().getClass(), RetryOnConflict.class) != null;
+	}
+
+	private boolean isConflict(Throwable e) {
+		if (e instanceof ConcurrencyFailureException)
+			return true;
+
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLException) {
+				String sqlState = ((SQLException) cause).getSQLState();
+
+				if (sqlState != null && (sqlState.startsWith("40") || retryableSqlStates.contains(sqlState)))
+					return true;
+			}
+
+			if (cause.getCause() == cause)
+				break;
+		}
+
+		return false;
+	}
+
+	private static class MethodStats {
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong conflicts = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+		final AtomicLong exhausted = new AtomicLong();
+
+		Map<String, Long> toMap() {
+			Map<String, Long> map = new LinkedHashMap<String, Long>();
+			map.put("calls", calls.get());
+			map.put("conflicts", conflicts.get());
+			map.put("retries", retries.get());
+			map.put("exhausted", exhausted.get());
+			return map;
+		}
+	}
+
+	/**
+	 * Token bucket limiting retries to a fraction of successful calls. Each
+	 * success adds {@code ratio} tokens, each retry costs one.
+	 */
+	private static class RetryBudget {
+		private final double ratio;
+		private final double max;
+		private double tokens;
+
+		RetryBudget(double ratio, double max) {
+			this.ratio = ratio;
+			this.max = max;
+			this.tokens = max;
+		}
+
+		synchronized void deposit() {
+			tokens = Math.min(max, tokens + ratio);
+		}
+
+		synchronized boolean withdraw() {
+			if (tokens < 1)
+				return false;
+
+			tokens--;
+			return true;
+		}
+
+		synchronized double available() {
+			return tokens;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package com.nuodb.samples.web;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nuodb.samples.jpa.AccountChangedEvent;
+
+/**
+ * Fans committed {@link AccountChangedEvent}s out to server-sent event
+ * subscribers.
+ * <p>
+ * Each event is serialized to JSON once and stored, as an immutable
+ * {@link Event}, in a ring buffer. Subscribers only hold a cursor (the
+ * sequence number of the next event they need), so adding subscribers costs
+ * no copying. Sender threads move each subscriber's cursor forward, never
+ * more than one at a time per subscriber.
+ * <p>
+ * Publishing never waits for subscribers. A subscriber that falls more than
+ * the ring's capacity behind is sent an {@code overrun} event and
+ * disconnected. Writes to the client block, so a client that stops reading
+ * holds its sender thread. The pool starts more threads rather than making
+ * other subscribers wait behind it, and a subscriber whose write has not
+ * finished after {@code demo.changes.send-timeout-ms} is disconnected. It can reconnect with the {@code Last-Event-ID} header (as
+ * browsers do automatically) or {@code ?from=} to resume; if the events it
+ * missed have already been overwritten it is sent a {@code reset} event and
+ * should re-read {@code /accounts}.
+ */
+@Component
+public class AccountChangeFeed {
+
+	protected static final Logger logger = LoggerFactory.getLogger(AccountChangeFeed.class);
+
+	/**
+	 * Most events sent to one subscriber before giving others a turn.
+	 */
+	private static final int MAX_EVENTS_PER_TURN = 256;
+
+	private final ObjectMapper objectMapper;
+
+	private final AtomicReferenceArray<Event> ring;
+
+	private final int mask;
+
+	private final long timeoutMillis;
+
+	private final long sendTimeoutNanos;
+
+	private final ExecutorService senders;
+
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+	private final Object signal = new Object();
+
+	/** Set when there may be work for the dispatcher. Guarded by {@link #signal}. */
+	private boolean woken = false;
+
+	/** Sequence of the last event published. Only written by {@link #publish}. */
+	private volatile long published = 0;
+
+	private volatile Thread dispatcher;
+
+	public AccountChangeFeed(ObjectMapper objectMapper, //
+			@Value("${demo.changes.capacity:4096}") int capacity, //
+			@Value("${demo.changes.timeout-ms:1800000}") long timeoutMillis, //
+			@Value("${demo.changes.sender-threads:4}") int senderThreads, //
+			@Value("${demo.changes.send-timeout-ms:5000}") long sendTimeoutMillis) {
+		if (Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("demo.changes.capacity must be a power of 2, not " + capacity);
+
+		this.objectMapper = objectMapper;
+		this.ring = new AtomicReferenceArray<Event>(capacity);
+		this.mask = capacity - 1;
+		this.timeoutMillis = timeoutMillis;
+		this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+		// senderThreads are kept, more are started when they are all busy - at
+		// most one per subscriber, as a subscriber is only drained by one at a time
+		this.senders = new ThreadPoolExecutor(senderThreads, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), r -> {
+					Thread thread = new Thread(r, "account-change-sender");
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	@PostConstruct
+	public void start() {
+		dispatcher = new Thread(this::dispatchLoop, "account-change-feed");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	@PreDestroy
+	public void stop() {
+		dispatcher = null;
+		senders.shutdownNow();
+
+		for (Subscriber subscriber : subscribers)
+			subscriber.emitter.complete();
+	}
+
+	/**
+	 * Add an event to the ring once the transaction that caused it has committed.
+	 * Changes made outside a transaction are published immediately.
+	 */
+	@TransactionalEventListener(fallbackExecution = true)
+	public void onAccountChanged(AccountChangedEvent event) {
+		try {
+			publish(event.type.name(), objectMapper.writeValueAsString(event));
+		} catch (JsonProcessingException e) {
+			logger.error("Cannot serialize " + event, e);
+		}
+	}
+
+	/**
+	 * Start streaming events to a new subscriber.
+	 *
+	 * @param from Sequence number of the first event wanted, or {@code null} for
+	 *             only new events.
+	 */
+	public SseEmitter subscribe(Long from) {
+		SseEmitter emitter = new SseEmitter(timeoutMillis);
+		long head = published;
+		long oldest = Math.max(1, head - ring.length() + 1);
+		long cursor = from == null || from > head + 1 ? head + 1 : from;
+
+		if (cursor < oldest) {
+			// Missed events have been overwritten
+			send(emitter, SseEmitter.event().name("reset").data(head + 1));
+			cursor = head + 1;
+		}
+
+		Subscriber subscriber = new Subscriber(emitter, cursor);
+		emitter.onCompletion(() -> subscribers.remove(subscriber));
+		emitter.onTimeout(() -> subscribers.remove(subscriber));
+		emitter.onError(e -> subscribers.remove(subscriber));
+		subscribers.add(subscriber);
+		wakeUp();
+
+		return emitter;
+	}
+
+	public int subscriberCount() {
+		return subscribers.size();
+	}
+
+	private synchronized void publish(String type, String json) {
+		long sequence = published + 1;
+
+		// One reference write replaces the whole event, so readers can never see
+		// a mix of two events
+		ring.set((int) sequence & mask, new Event(sequence, type, json));
+
+		published = sequence;
+		wakeUp();
+	}
+
+	private void wakeUp() {
+		synchronized (signal) {
+			woken = true;
+			signal.notifyAll();
+		}
+	}
+
+	private void dispatchLoop() {
+		while (dispatcher == Thread.currentThread()) {
+			try {
+				synchronized (signal) {
+					if (!woken)
+						signal.wait(1000);
+					woken = false;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long head = published;
+			long now = System.nanoTime();
+
+			for (Subscriber subscriber : subscribers) {
+				long sendingSince = subscriber.sendingSince;
+
+				if (sendingSince != 0 && now - sendingSince > sendTimeoutNanos) {
+					// Stopped reading - cut it off so it can be dropped by its sender
+					logger.info("Disconnecting change feed subscriber stalled for {}ms",
+							TimeUnit.NANOSECONDS.toMillis(now - sendingSince));
+					subscriber.stalled = true;
+					subscribers.remove(subscriber);
+					subscriber.emitter.completeWithError(new IOException("Send timed out"));
+				} else if (subscriber.cursor <= head && subscriber.busy.compareAndSet(false, true)) {
+					senders.execute(() -> drain(subscriber));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send a subscriber the events it hasn't seen yet. Runs on a sender thread,
+	 * never more than one at a time per subscriber.
+	 */
+	private void drain(Subscriber subscriber) {
+		try {
+			for (int sent = 0; sent < MAX_EVENTS_PER_TURN && subscriber.cursor <= published; sent++) {
+				long sequence = subscriber.cursor;
+				Event event = ring.get((int) sequence & mask);
+
+				if (event == null || event.sequence != sequence) {
+					// Overwritten by the writer - too slow, make it reconnect
+					send(subscriber.emitter, SseEmitter.event().name("overrun").data(sequence));
+					subscriber.emitter.complete();
+					subscribers.remove(subscriber);
+					return;
+				}
+
+				subscriber.sendingSince = System.nanoTime();
+				boolean delivered = send(subscriber.emitter, SseEmitter.event().id(Long.toString(sequence)) //
+						.name(event.type).data(event.data, MediaType.APPLICATION_JSON));
+				subscriber.sendingSince = 0;
+
+				if (!delivered || subscriber.stalled) {
+					subscribers.remove(subscriber);
+					return;
+				}
+
+				subscriber.cursor = sequence + 1;
+			}
+		} finally {
+			subscriber.busy.set(false);
+		}
+
+		if (subscriber.cursor <= published)
+			wakeUp();
+	}
+
+	private boolean send(SseEmitter emitter, SseEmitter.SseEventBuilder event) {
+		try {
+			emitter.send(event);
+			return true;
+		} catch (IOException | IllegalStateException e) {
+			// Client has gone away
+			emitter.completeWithError(e);
+			return false;
+		}
+	}
+
+	/**
+	 * One event in the ring.
+	 */
+	private static class Event {
+		final long sequence;
+		final String type;
+		final String data;
+
+		Event(long sequence, String type, String data) {
+			this.sequence = sequence;
+			this.type = type;
+			this.data = data;
+		}
+	}
+
+	private static class Subscriber {
+		final SseEmitter emitter;
+		final AtomicBoolean busy = new AtomicBoolean();
+		volatile long cursor;
+
+		/** When the write in progress started, 0 if none. */
+		volatile long sendingSince = 0;
+
+		/** Disconnected because a write took too long. */
+		volatile boolean stalled = false;
+
+		Subscriber(SseEmitter emitter, long cursor) {
+			this.emitter = emitter;
+			this.cursor = cursor;
+		}
+	}
+}
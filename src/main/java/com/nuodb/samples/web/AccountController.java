@@ -1,20 +1,53 @@
 package com.nuodb.samples.web;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import com.nuodb.samples.analytics.AccountNameIndex;
+import com.nuodb.samples.analytics.RadixTrie;
 import com.nuodb.samples.jpa.Account;
 import com.nuodb.samples.jpa.AccountService;
 
 @RestController
 class AccountController {
+
+	/**
+	 * Largest page size allowed for {@link #accountsByBalance}.
+	 */
+	public static final int MAX_PAGE_SIZE = 1000;
+
 	private AccountService accountService;
 
-	public AccountController(AccountService accountService) {
+	private AccountChangeFeed accountChangeFeed;
+
+	private AccountNameIndex accountNameIndex;
+
+	/** Most ids {@link #accounts(List)} accepts in one request. */
+	private int maxBatchIds;
+
+	public AccountController(AccountService accountService, AccountChangeFeed accountChangeFeed,
+			AccountNameIndex accountNameIndex, //
+			@Value("${demo.accounts.batch.max-request-ids:1000}") int maxBatchIds) {
 		this.accountService = accountService;
+		this.accountChangeFeed = accountChangeFeed;
+		this.accountNameIndex = accountNameIndex;
+		this.maxBatchIds = maxBatchIds;
 	}
 
 	@GetMapping("/accounts")
@@ -22,8 +55,124 @@ class AccountController {
 		return accountService.findAll();
 	}
 
+	/**
+	 * All accounts in {@link AccountWireFormat}, written as they are read from
+	 * the database rather than loaded first.
+	 */
+	@GetMapping(value = "/accounts", produces = AccountWireFormat.MEDIA_TYPE)
+	public void allAccountsBinary(HttpServletResponse response) throws IOException {
+		response.setContentType(AccountWireFormat.MEDIA_TYPE);
+
+		try (AccountWireFormat.Encoder encoder = new AccountWireFormat.Encoder(response.getOutputStream())) {
+			accountService.forEachAccount(account -> {
+				try {
+					encoder.write(account);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+
+			encoder.finish();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
 	@GetMapping("/accounts/search/{match}")
 	public List<Account> search(@PathVariable("match") String match) {
 		return accountService.find(match);
 	}
+
+	/**
+	 * Type-ahead: the {@code k} accounts with the highest balances whose names
+	 * start with {@code prefix}. Answered from memory, not the database.
+	 */
+	@GetMapping("/accounts/autocomplete")
+	public ResponseEntity<List<RadixTrie.Entry>> autocomplete(
+			@RequestParam(name = "prefix", defaultValue = "") String prefix,
+			@RequestParam(name = "k", defaultValue = "10") int k) {
+		if (k < 0)
+			return ResponseEntity.badRequest().build();
+
+		return ResponseEntity.ok(accountNameIndex.complete(prefix, k));
+	}
+
+	@GetMapping("/accounts/{id:\\d+}")
+	public ResponseEntity<Account> account(@PathVariable("id") long id) {
+		Account account = accountService.findById(id);
+		return account == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(account);
+	}
+
+	/**
+	 * Fetch many accounts in one request - expects a JSON array of ids. Ids that
+	 * do not exist are ignored. A null id, or more than
+	 * {@code demo.accounts.batch.max-request-ids} of them, is a bad request.
+	 */
+	@PostMapping("/accounts/batch")
+	public ResponseEntity<List<Account>> accounts(@RequestBody List<Long> ids) {
+		if (ids.size() > maxBatchIds || ids.contains(null))
+			return ResponseEntity.badRequest().build();
+
+		return ResponseEntity.ok(accountService.findByIds(ids));
+	}
+
+	/**
+	 * Accounts with a balance in the range {@code min} to {@code max}, lowest
+	 * balance first. To fetch the next page, pass {@code afterBalance} and
+	 * {@code afterId} from the previous response.
+	 */
+	@GetMapping("/accounts/balance")
+	public AccountPage accountsByBalance(@RequestParam(name = "min", defaultValue = "0") int min,
+			@RequestParam(name = "max", defaultValue = "" + Integer.MAX_VALUE) int max,
+			@RequestParam(name = "afterBalance", required = false) Integer afterBalance,
+			@RequestParam(name = "afterId", required = false) Long afterId,
+			@RequestParam(name = "limit", defaultValue = "100") int limit) {
+		limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+		return new AccountPage(accountService.findByBalance(min, max, afterBalance, afterId, limit), limit);
+	}
+
+	/**
+	 * Add a positive {@code amount} to an account's balance. 400 if the amount
+	 * is not positive, 409 if the balance would overflow.
+	 */
+	@PostMapping("/accounts/{id:\\d+}/credit")
+	public ResponseEntity<Account> credit(@PathVariable("id") long id, @RequestParam("amount") int amount) {
+		if (amount <= 0)
+			return ResponseEntity.badRequest().build();
+
+		try {
+			Account account = accountService.credit(id, amount);
+			return account == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(account);
+		} catch (ArithmeticException e) {
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		}
+	}
+
+	/**
+	 * Subtract a positive {@code amount} from an account's balance. 400 if the
+	 * amount is not positive, 409 if the balance would overflow.
+	 */
+	@PostMapping("/accounts/{id:\\d+}/debit")
+	public ResponseEntity<Account> debit(@PathVariable("id") long id, @RequestParam("amount") int amount) {
+		if (amount <= 0)
+			return ResponseEntity.badRequest().build();
+
+		try {
+			Account account = accountService.debit(id, amount);
+			return account == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(account);
+		} catch (ArithmeticException e) {
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		}
+	}
+
+	/**
+	 * Server-sent events for account inserts and balance changes. To resume
+	 * after a disconnect, pass the id of the last event received as the
+	 * {@code Last-Event-ID} header or the {@code from} parameter (plus one).
+	 */
+	@GetMapping(path = "/accounts/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public SseEmitter changes(@RequestHeader(name = "Last-Event-ID", required = false) Long lastEventId,
+			@RequestParam(name = "from", required = false) Long from) {
+		return accountChangeFeed.subscribe(lastEventId != null ? Long.valueOf(lastEventId + 1) : from);
+	}
 }
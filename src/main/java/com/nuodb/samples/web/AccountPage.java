@@ -0,0 +1,32 @@
+package com.nuodb.samples.web;
+
+import java.util.List;
+
+import com.nuodb.samples.jpa.Account;
+
+/**
+ * One page of a keyset-paginated account query. If there may be more results,
+ * {@link #afterBalance} and {@link #afterId} hold the key to request the next
+ * page with, otherwise they are {@code null}.
+ */
+public class AccountPage {
+
+	public final List<Account> accounts;
+
+	public final Integer afterBalance;
+
+	public final Long afterId;
+
+	public AccountPage(List<Account> accounts, int limit) {
+		this.accounts = accounts;
+
+		if (accounts.size() < limit) {
+			this.afterBalance = null;
+			this.afterId = null;
+		} else {
+			Account last = accounts.get(accounts.size() - 1);
+			this.afterBalance = last.getBalance();
+			this.afterId = last.getId();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.nuodb.samples.web;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+import com.nuodb.samples.jpa.Account;
+
+/**
+ * Writes lists of accounts in {@link AccountWireFormat} when the client asks
+ * for {@value AccountWireFormat#MEDIA_TYPE}. Write-only: {@link #canRead}
+ * is false, so a request body in this format gets a 415 response.
+ * <p>
+ * The list has already been read by the time it gets here. Listing every
+ * account is instead streamed straight from the database by
+ * {@code AccountController}.
+ */
+public class AccountWireFormatConverter extends AbstractGenericHttpMessageConverter<Iterable<Account>> {
+
+	public AccountWireFormatConverter() {
+		super(MediaType.parseMediaType(AccountWireFormat.MEDIA_TYPE));
+	}
+
+	@Override
+	protected boolean supports(Class<?> clazz) {
+		return Iterable.class.isAssignableFrom(clazz);
+	}
+
+	@Override
+	public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+		return false;
+	}
+
+	@Override
+	public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+		Class<?> elementType = ResolvableType.forType(type != null ? type : clazz).as(Iterable.class).resolveGeneric(0);
+		return elementType != null && Account.class.isAssignableFrom(elementType) && canWrite(mediaType);
+	}
+
+	@Override
+	protected void writeInternal(Iterable<Account> accounts, Type type, HttpOutputMessage outputMessage)
+			throws IOException, HttpMessageNotWritableException {
+		AccountWireFormat.encode(accounts, outputMessage.getBody());
+	}
+
+	/**
+	 * Never called, since {@link #canRead} is always false - but if it were, the
+	 * client should get a 4xx response, not a 500.
+	 */
+	@Override
+	public Iterable<Account> read(Type type, Class<?> contextClass, HttpInputMessage inputMessage)
+			throws IOException, HttpMessageNotReadableException {
+		throw new HttpMessageNotReadableException("Reading " + AccountWireFormat.MEDIA_TYPE + " is not supported",
+				inputMessage);
+	}
+
+	@Override
+	protected Iterable<Account> readInternal(Class<? extends Iterable<Account>> clazz, HttpInputMessage inputMessage)
+			throws IOException, HttpMessageNotReadableException {
+		return read(clazz, null, inputMessage);
+	}
+}
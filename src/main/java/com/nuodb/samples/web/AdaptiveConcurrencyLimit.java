@@ -0,0 +1,164 @@
+package com.nuodb.samples.web;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimates how many requests can usefully be in flight at once, using a
+ * gradient algorithm similar to TCP Vegas.
+ * <p>
+ * The shortest latency seen recently ({@code minRtt}) approximates the latency
+ * with no queueing. Once per sample window the limit is scaled by
+ * {@code minRtt / sampleRtt}: when latency rises because requests are queueing
+ * (for database connections, say) the limit shrinks; when latency is close to
+ * the minimum it grows by a small queue allowance of {@code sqrt(limit)}. The
+ * result is smoothed so one slow window does not halve throughput.
+ * <p>
+ * The limit only grows if the window's peak number of requests in flight
+ * reached at least half of it. Otherwise low latency says nothing about what
+ * a higher limit would do, and under light load the limit would drift up to
+ * its maximum and offer no protection when a burst arrives.
+ * <p>
+ * Callers that cannot {@link #tryAcquire()} should be rejected at once, not
+ * queued - that is what keeps latency bounded when the database slows down.
+ */
+public class AdaptiveConcurrencyLimit {
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final double smoothing;
+
+	private final long windowNanos;
+
+	private final long minRttResetNanos;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/** Most requests in flight at once during the current window. */
+	private final AtomicInteger windowPeakInFlight = new AtomicInteger();
+
+	private final AtomicLong accepted = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private volatile int limit;
+
+	// Guarded by this
+	private long windowStart = System.nanoTime();
+	private long windowRttSum;
+	private int windowSamples;
+	private long minRtt = Long.MAX_VALUE;
+	private long minRttSince = System.nanoTime();
+	private double estimatedLimit;
+	private long lastSampleRtt;
+	private int lastPeakInFlight;
+
+	/**
+	 * @param initialLimit Starting limit.
+	 * @param minLimit     The limit never drops below this.
+	 * @param maxLimit     The limit never rises above this.
+	 * @param smoothing    Weight (0-1) given to each new estimate.
+	 * @param windowMillis How often to recalculate the limit.
+	 */
+	public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double smoothing,
+			long windowMillis) {
+		this.limit = initialLimit;
+		this.estimatedLimit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.smoothing = smoothing;
+		this.windowNanos = windowMillis * 1_000_000L;
+		// Forget the minimum occasionally, in case the baseline has moved
+		this.minRttResetNanos = 100 * windowNanos;
+	}
+
+	/**
+	 * Try to start a request.
+	 *
+	 * @return {@code true} if the request may proceed, in which case
+	 *         {@link #release(long)} must be called when it ends.
+	 */
+	public boolean tryAcquire() {
+		while (true) {
+			int current = inFlight.get();
+
+			if (current >= limit) {
+				rejected.incrementAndGet();
+				return false;
+			}
+
+			if (inFlight.compareAndSet(current, current + 1)) {
+				windowPeakInFlight.accumulateAndGet(current + 1, Math::max);
+				accepted.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * A request started by {@link #tryAcquire()} has finished.
+	 *
+	 * @param rttNanos How long it took.
+	 */
+	public void release(long rttNanos) {
+		inFlight.decrementAndGet();
+		sample(rttNanos);
+	}
+
+	private synchronized void sample(long rttNanos) {
+		long now = System.nanoTime();
+
+		if (now - minRttSince > minRttResetNanos) {
+			minRtt = Long.MAX_VALUE;
+			minRttSince = now;
+		}
+
+		minRtt = Math.min(minRtt, rttNanos);
+		windowRttSum += rttNanos;
+		windowSamples++;
+
+		if (now - windowStart < windowNanos)
+			return;
+
+		long sampleRtt = windowRttSum / windowSamples;
+		double gradient = Math.max(0.5, Math.min(1.0, (double) minRtt / sampleRtt));
+		int peakInFlight = windowPeakInFlight.getAndSet(inFlight.get());
+
+		// Only probe for a higher limit if the current one is actually being used
+		double queueSize = peakInFlight * 2 >= estimatedLimit ? Math.sqrt(estimatedLimit) : 0;
+		double newLimit = estimatedLimit * gradient + queueSize;
+
+		estimatedLimit = (1 - smoothing) * estimatedLimit + smoothing * newLimit;
+		estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+		limit = (int) estimatedLimit;
+
+		lastSampleRtt = sampleRtt;
+		lastPeakInFlight = peakInFlight;
+		windowStart = now;
+		windowRttSum = 0;
+		windowSamples = 0;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Current state, for reporting.
+	 */
+	public synchronized Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("limit", limit);
+		stats.put("inFlight", inFlight.get());
+		stats.put("lastWindowPeakInFlight", lastPeakInFlight);
+		stats.put("accepted", accepted.get());
+		stats.put("rejected", rejected.get());
+		stats.put("minRttMicros", minRtt == Long.MAX_VALUE ? null : minRtt / 1000);
+		stats.put("sampleRttMicros", lastSampleRtt / 1000);
+		return stats;
+	}
+}
@@ -0,0 +1,71 @@
+package com.nuodb.samples.web;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.nuodb.samples.jpa.BulkBalanceJobs;
+
+/**
+ * Starts and monitors {@link BulkBalanceJobs}.
+ */
+@RestController
+@ConditionalOnProperty(name = "demo.sharding.enabled", havingValue = "false", matchIfMissing = true)
+class BulkJobController {
+	private BulkBalanceJobs bulkBalanceJobs;
+
+	public BulkJobController(BulkBalanceJobs bulkBalanceJobs) {
+		this.bulkBalanceJobs = bulkBalanceJobs;
+	}
+
+	/**
+	 * Adjust the balance of every account with an id from {@code minId} to
+	 * {@code maxId} (default all accounts). {@code operation} is {@code ADD} to
+	 * add {@code amount}, or {@code PERCENT} to add {@code amount} basis points
+	 * of the balance. Returns at once with the job's id, or 400 if the amount is
+	 * out of range or the operation is not allowed.
+	 */
+	@PostMapping("/jobs/balance")
+	public ResponseEntity<Map<String, Object>> start(@RequestParam("operation") BulkBalanceJobs.Operation operation,
+			@RequestParam("amount") int amount, @RequestParam(name = "minId", required = false) Long minId,
+			@RequestParam(name = "maxId", required = false) Long maxId) {
+		try {
+			return ResponseEntity.accepted().body(bulkBalanceJobs.start(operation, amount, minId, maxId));
+		} catch (IllegalArgumentException e) {
+			return badRequest(e);
+		}
+	}
+
+	@GetMapping("/jobs/{id:\\d+}")
+	public ResponseEntity<Map<String, Object>> status(@PathVariable("id") long id) {
+		Map<String, Object> status = bulkBalanceJobs.status(id);
+		return status == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(status);
+	}
+
+	/**
+	 * Run the chunks of a failed or interrupted job that have not completed.
+	 */
+	@PostMapping("/jobs/{id:\\d+}/resume")
+	public ResponseEntity<Map<String, Object>> resume(@PathVariable("id") long id) {
+		try {
+			Map<String, Object> status = bulkBalanceJobs.resume(id);
+			return status == null ? ResponseEntity.notFound().build() : ResponseEntity.accepted().body(status);
+		} catch (IllegalStateException e) {
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		} catch (IllegalArgumentException e) {
+			return badRequest(e);
+		}
+	}
+
+	private static ResponseEntity<Map<String, Object>> badRequest(IllegalArgumentException e) {
+		return ResponseEntity.badRequest().body(Collections.<String, Object>singletonMap("error", e.getMessage()));
+	}
+}
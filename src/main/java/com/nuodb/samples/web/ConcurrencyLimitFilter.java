@@ -0,0 +1,69 @@
+package com.nuodb.samples.web;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Admission control for the {@code /accounts} URLs. Requests beyond the
+ * current {@link AdaptiveConcurrencyLimit} are rejected immediately with
+ * {@code 503 Service Unavailable} instead of waiting for a database connection
+ * that may not come. Clients should back off and retry.
+ * <p>
+ * The change feed is excluded - its requests stay open indefinitely and don't
+ * use the database.
+ */
+@Component
+public class ConcurrencyLimitFilter extends OncePerRequestFilter {
+
+	protected static final Logger logger = LoggerFactory.getLogger(ConcurrencyLimitFilter.class);
+
+	private final AdaptiveConcurrencyLimit limit;
+
+	public ConcurrencyLimitFilter(@Value("${demo.limit.initial:20}") int initialLimit,
+			@Value("${demo.limit.min:4}") int minLimit, //
+			@Value("${demo.limit.max:200}") int maxLimit, //
+			@Value("${demo.limit.smoothing:0.2}") double smoothing, //
+			@Value("${demo.limit.window-ms:1000}") long windowMillis) {
+		this.limit = new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit, smoothing, windowMillis);
+	}
+
+	public AdaptiveConcurrencyLimit getLimit() {
+		return limit;
+	}
+
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		String path = request.getServletPath();
+		return !path.startsWith("/accounts") || path.startsWith("/accounts/changes");
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+			FilterChain filterChain) throws ServletException, IOException {
+		if (!limit.tryAcquire()) {
+			logger.debug("Rejected {} - concurrency limit {} reached", request.getRequestURI(), limit.getLimit());
+			response.setHeader("Retry-After", "1");
+			response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Concurrency limit reached");
+			return;
+		}
+
+		long start = System.nanoTime();
+
+		try {
+			filterChain.doFilter(request, response);
+		} finally {
+			limit.release(System.nanoTime() - start);
+		}
+	}
+}
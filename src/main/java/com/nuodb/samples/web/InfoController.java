@@ -1,17 +1,49 @@
 package com.nuodb.samples.web;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.nuodb.samples.ConnectionHandler;
+import com.nuodb.samples.jdbc.MonitoredDataSource;
+import com.nuodb.samples.jdbc.SqlTracer;
+import com.nuodb.samples.jpa.TransactionRetryAspect;
 
 @RestController
 public class InfoController {
 
 	protected static final Logger logger = LoggerFactory.getLogger(InfoController.class);
 
+	private ConcurrencyLimitFilter concurrencyLimitFilter;
+
+	private TransactionRetryAspect transactionRetryAspect;
+
+	private DataSource dataSource;
+
+	private SqlTracer sqlTracer;
+
+	private WarmUp warmUp;
+
+	public InfoController(ConcurrencyLimitFilter concurrencyLimitFilter,
+			TransactionRetryAspect transactionRetryAspect, DataSource dataSource,
+			ObjectProvider<SqlTracer> sqlTracer, WarmUp warmUp) {
+		this.concurrencyLimitFilter = concurrencyLimitFilter;
+		this.transactionRetryAspect = transactionRetryAspect;
+		this.dataSource = dataSource;
+		this.sqlTracer = sqlTracer.getIfAvailable();
+		this.warmUp = warmUp;
+	}
+
 	@GetMapping("/")
 	public String home() {
 		logger.info("Root URL");
@@ -21,15 +53,59 @@ public class InfoController {
 				+ "<ul>" //
 				+ "<li><a href='/accounts'>List all accounts: /accounts</a>" //
 				+ "<li><a href='/accounts/search/m'>Find all accounts whose name contains m: /accounts/search/m</a>"
-				+ "<li><a href='/info'>Show connection information: /info</a>" //
+				+ "<li><a href='/accounts/autocomplete?prefix=ma'>Autocomplete names starting ma: /accounts/autocomplete?prefix=ma</a>"
+				+ "<li><a href='/accounts/1'>Show account 1: /accounts/1</a>" //
+				+ "<li><a href='/accounts/balance?min=10000&max=50000'>Find accounts by balance: /accounts/balance?min=10000&max=50000</a>"
+				+ "<li><a href='/accounts/changes'>Stream account changes: /accounts/changes</a>" //
+				+ "<li><a href='/info'>Show connection and pool information: /info</a>" //
+				+ "<li><a href='/info/limit'>Show request concurrency limit: /info/limit</a>" //
+				+ "<li><a href='/info/retries'>Show transaction conflicts and retries: /info/retries</a>" //
+				+ "<li><a href='/info/sql'>Show the slowest SQL statements: /info/sql</a>" //
+				+ "<li><a href='/info/warmup'>Show how long warm-up took: /info/warmup</a>" //
+				+ "<li><a href='/ready'>Check this application is warmed up and ready: /ready</a>" //
 				+ "<li><a href='/shutdown'>Shutdown this application: /shutdown</a>" //
 				+ "</ul>";
 	}
 
 	@GetMapping("/info")
-	public ConnectionHandler info() {
+	public Map<String, Object> info() {
 		logger.info("info URL");
-		return ConnectionHandler.getConnectionInfo();
+		Map<String, Object> info = new LinkedHashMap<String, Object>();
+		info.put("connection", ConnectionHandler.getConnectionInfo());
+
+		if (dataSource instanceof MonitoredDataSource)
+			info.put("pool", ((MonitoredDataSource) dataSource).stats());
+
+		return info;
+	}
+
+	@GetMapping("/info/limit")
+	public Map<String, Object> limit() {
+		return concurrencyLimitFilter.getLimit().stats();
+	}
+
+	@GetMapping("/info/retries")
+	public Map<String, Object> retries() {
+		return transactionRetryAspect.stats();
+	}
+
+	@GetMapping("/info/sql")
+	public ResponseEntity<Map<String, Object>> sql(@RequestParam(name = "top", defaultValue = "20") int top) {
+		return sqlTracer == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(sqlTracer.report(top));
+	}
+
+	@GetMapping("/info/warmup")
+	public Map<String, Object> warmUp() {
+		return warmUp.stats();
+	}
+
+	/**
+	 * Readiness check: 503 (Service Unavailable) until warm-up is over.
+	 */
+	@GetMapping("/ready")
+	public ResponseEntity<String> ready() {
+		return warmUp.isReady() ? ResponseEntity.ok(warmUp.getState().name())
+				: ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(warmUp.getState().name());
 	}
 
 	@GetMapping("/shutdown")
@@ -0,0 +1,47 @@
+package com.nuodb.samples.web;
+
+import java.util.IntSummaryStatistics;
+import java.util.Map;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.nuodb.samples.analytics.AccountSnapshot;
+
+/**
+ * Range and aggregate queries answered from the in-memory
+ * {@link AccountSnapshot} rather than the database.
+ */
+@RestController
+@ConditionalOnProperty(name = "demo.snapshot.enabled", havingValue = "true")
+class SnapshotController {
+	private AccountSnapshot accountSnapshot;
+
+	public SnapshotController(AccountSnapshot accountSnapshot) {
+		this.accountSnapshot = accountSnapshot;
+	}
+
+	@GetMapping("/snapshot")
+	public Map<String, Object> footprint() {
+		return accountSnapshot.footprint();
+	}
+
+	@GetMapping("/snapshot/balance")
+	public IntSummaryStatistics balance(@RequestParam(name = "min", defaultValue = "0") int min,
+			@RequestParam(name = "max", defaultValue = "" + Integer.MAX_VALUE) int max) {
+		return accountSnapshot.summarize(min, max);
+	}
+
+	@GetMapping("/snapshot/balance/ids")
+	public ResponseEntity<long[]> ids(@RequestParam(name = "min", defaultValue = "0") int min,
+			@RequestParam(name = "max", defaultValue = "" + Integer.MAX_VALUE) int max,
+			@RequestParam(name = "limit", defaultValue = "1000") int limit) {
+		if (limit < 0)
+			return ResponseEntity.badRequest().build();
+
+		return ResponseEntity.ok(accountSnapshot.findIds(min, max, limit));
+	}
+}
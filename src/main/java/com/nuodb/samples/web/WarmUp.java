@@ -0,0 +1,274 @@
+package com.nuodb.samples.web;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import com.nuodb.samples.jdbc.LatencyRecorder;
+import com.nuodb.samples.jpa.Account;
+import com.nuodb.samples.jpa.AccountService;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Warms the application up before it reports itself ready (see
+ * {@code /ready}), so a new instance does not take traffic with an empty
+ * connection pool and code the JIT has not compiled yet.
+ * <p>
+ * Once the application has started, and after the in-memory caches have
+ * loaded, the warm-up:
+ * <ol>
+ * <li>Opens {@code demo.warmup.connections} connections at once, by default
+ * Hikari's {@code minimum-idle}, so the pool does not have to open them on
+ * demand.
+ * <li>Runs batches of read-only {@link AccountService} calls, like those the
+ * REST API makes, on {@code demo.warmup.threads} threads until the median
+ * latency of a batch is within {@code demo.warmup.tolerance} of the previous
+ * batch's, or {@code demo.warmup.max-ms} has passed.
+ * </ol>
+ * Warm-up is an optimization: if it fails the application is ready anyway.
+ * Disable it with {@code demo.warmup.enabled=false}. Its duration and the
+ * latency of the first and last batches are shown at {@code /info/warmup}.
+ */
+@Component
+public class WarmUp {
+
+	public enum State {
+		STARTING, RUNNING, DONE, FAILED, DISABLED
+	}
+
+	protected static final Logger logger = LoggerFactory.getLogger(WarmUp.class);
+
+	/** Accounts whose ids and names the calls use. */
+	private static final int SAMPLE_SIZE = 100;
+
+	private final AccountService accountService;
+
+	private final DataSource dataSource;
+
+	private final boolean enabled;
+
+	private final int connections;
+
+	private final int threads;
+
+	private final int batchSize;
+
+	private final double tolerance;
+
+	private final long maxMillis;
+
+	private volatile State state = State.STARTING;
+
+	private volatile Map<String, Object> stats = Collections.emptyMap();
+
+	public WarmUp(AccountService accountService, DataSource dataSource,
+			@Value("${demo.warmup.enabled:true}") boolean enabled,
+			@Value("${demo.warmup.connections:0}") int connections,
+			@Value("${demo.warmup.threads:4}") int threads,
+			@Value("${demo.warmup.batch-size:200}") int batchSize,
+			@Value("${demo.warmup.tolerance:0.1}") double tolerance,
+			@Value("${demo.warmup.max-ms:30000}") long maxMillis) {
+		this.accountService = accountService;
+		this.dataSource = dataSource;
+		this.enabled = enabled;
+		this.connections = connections;
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.tolerance = tolerance;
+		this.maxMillis = maxMillis;
+	}
+
+	public boolean isReady() {
+		return state == State.DONE || state == State.FAILED || state == State.DISABLED;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Warm-up state, duration and before and after latencies.
+	 */
+	public Map<String, Object> stats() {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("state", state);
+		result.putAll(stats);
+		return result;
+	}
+
+	/**
+	 * Runs last of the ready listeners, so caches they load are primed first.
+	 * The web server is already accepting requests - {@code /ready} fails until
+	 * this returns.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	@Order(Ordered.LOWEST_PRECEDENCE)
+	public void warmUp() {
+		if (!enabled) {
+			state = State.DISABLED;
+			return;
+		}
+
+		state = State.RUNNING;
+		long start = System.currentTimeMillis();
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+
+		try {
+			openConnections(result);
+			runCalls(result, start);
+			state = State.DONE;
+		} catch (Exception e) {
+			logger.warn("Warm-up failed, continuing without it", e);
+			result.put("error", e.toString());
+			state = State.FAILED;
+		} finally {
+			result.put("durationMillis", System.currentTimeMillis() - start);
+			stats = result;
+		}
+
+		logger.info("Warm-up {}: {}", state, result);
+	}
+
+	private void openConnections(Map<String, Object> result) throws SQLException {
+		int count = connections > 0 ? connections : minimumIdle();
+		long start = System.currentTimeMillis();
+		List<Connection> opened = new ArrayList<Connection>();
+
+		try {
+			for (int i = 0; i < count; i++)
+				opened.add(dataSource.getConnection());
+		} finally {
+			for (Connection connection : opened)
+				connection.close();
+		}
+
+		result.put("connectionsOpened", opened.size());
+		result.put("connectionMillis", System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Hikari's minimum idle connections, or the number of warm-up threads for
+	 * other pools.
+	 */
+	private int minimumIdle() throws SQLException {
+		if (dataSource.isWrapperFor(HikariDataSource.class))
+			return dataSource.unwrap(HikariDataSource.class).getMinimumIdle();
+
+		return threads;
+	}
+
+	private void runCalls(Map<String, Object> result, long start) throws Exception {
+		List<Account> sample = accountService.findByBalance(Integer.MIN_VALUE, Integer.MAX_VALUE, null, null,
+				SAMPLE_SIZE);
+
+		if (sample.isEmpty()) {
+			result.put("calls", 0);
+			return; // Nothing to query
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "warm-up");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try {
+			LatencyRecorder first = null;
+			LatencyRecorder last = null;
+			long previousMedian = 0;
+			int batches = 0;
+
+			do {
+				LatencyRecorder batch = runBatch(executor, sample);
+				long median = median(batch);
+				batches++;
+
+				if (first == null)
+					first = batch;
+
+				last = batch;
+
+				if (batches > 1 && Math.abs(median - previousMedian) <= tolerance * previousMedian)
+					break; // Settled
+
+				previousMedian = median;
+			} while (System.currentTimeMillis() - start < maxMillis);
+
+			result.put("calls", (long) batches * batchSize);
+			result.put("batches", batches);
+			result.put("before", first.percentiles());
+			result.put("after", last.percentiles());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private LatencyRecorder runBatch(ExecutorService executor, List<Account> sample) throws Exception {
+		LatencyRecorder latencies = new LatencyRecorder(batchSize);
+		List<Future<?>> calls = new ArrayList<Future<?>>();
+
+		for (int i = 0; i < batchSize; i++) {
+			int call = i;
+			calls.add(executor.submit(() -> {
+				long callStart = System.nanoTime();
+				call(call, sample);
+				latencies.record(System.nanoTime() - callStart);
+			}));
+		}
+
+		for (Future<?> future : calls)
+			future.get(maxMillis, TimeUnit.MILLISECONDS);
+
+		return latencies;
+	}
+
+	/**
+	 * One of the read-only calls the REST API makes, chosen by {@code n}.
+	 */
+	private void call(int n, List<Account> sample) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Account account = sample.get(random.nextInt(sample.size()));
+
+		switch (n % 4) {
+		case 0:
+			accountService.findById(account.getId());
+			break;
+		case 1:
+			List<Long> ids = new ArrayList<Long>();
+			for (int i = 0; i < 10; i++)
+				ids.add(sample.get(random.nextInt(sample.size())).getId());
+			accountService.findByIds(ids);
+			break;
+		case 2:
+			accountService.findByBalance(account.getBalance(), Integer.MAX_VALUE, null, null, 20);
+			break;
+		default:
+			String name = account.getName();
+			accountService.find(name == null || name.length() < 2 ? "a" : name.substring(0, 2));
+		}
+	}
+
+	private static long median(LatencyRecorder latencies) {
+		return ((Number) latencies.percentiles().get("p50Micros")).longValue();
+	}
+}
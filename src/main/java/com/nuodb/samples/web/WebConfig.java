@@ -0,0 +1,23 @@
+package com.nuodb.samples.web;
+
+import java.util.List;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Spring MVC customizations.
+ */
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+	/**
+	 * Add the binary account format after the defaults, so JSON is still used
+	 * unless the client asks for {@value AccountWireFormat#MEDIA_TYPE}.
+	 */
+	@Override
+	public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+		converters.add(new AccountWireFormatConverter());
+	}
+}
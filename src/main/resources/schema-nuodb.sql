@@ -6,3 +6,21 @@
 DROP TABLE demo.Accounts IF EXISTS;
 CREATE TABLE demo.Accounts (id INT GENERATED ALWAYS AS IDENTITY PRIMARY KEY, name STRING);
 ALTER TABLE demo.Accounts ADD COLUMN balance INT;
+
+-- Supports balance range queries, ordered by (balance, id) for keyset paging
+CREATE INDEX idx_accounts_balance_id ON demo.Accounts (balance, id);
+
+-- Ledger mode (demo.ledger.enabled=true): credits and debits are appended to
+-- demo.Ledger. Accounts.balance is a snapshot that includes every ledger entry
+-- marked compacted.
+DROP TABLE demo.Ledger IF EXISTS;
+CREATE TABLE demo.Ledger (id BIGINT GENERATED ALWAYS AS IDENTITY PRIMARY KEY, account_id BIGINT NOT NULL, amount INT NOT NULL, created TIMESTAMP NOT NULL, compacted BOOLEAN DEFAULT FALSE NOT NULL);
+CREATE INDEX idx_ledger_account_id ON demo.Ledger (account_id, id);
+CREATE INDEX idx_ledger_pending ON demo.Ledger (compacted, account_id);
+
+-- Bulk balance jobs: each chunk of accounts adjusted is recorded in
+-- demo.BulkJobChunks in the same transaction as the update
+DROP TABLE demo.BulkJobs IF EXISTS;
+CREATE TABLE demo.BulkJobs (id BIGINT GENERATED ALWAYS AS IDENTITY PRIMARY KEY, operation STRING NOT NULL, amount INT NOT NULL, min_id BIGINT NOT NULL, max_id BIGINT NOT NULL, chunk_size INT NOT NULL, created TIMESTAMP NOT NULL);
+DROP TABLE demo.BulkJobChunks IF EXISTS;
+CREATE TABLE demo.BulkJobChunks (job_id BIGINT NOT NULL, chunk_start BIGINT NOT NULL, row_count INT NOT NULL, completed TIMESTAMP NOT NULL, PRIMARY KEY (job_id, chunk_start));
@@ -0,0 +1,8 @@
+-- Run on every shard by ShardedAccountRepository when demo.sharding.enabled=true
+--
+-- Ids are allocated by the application so they are unique across shards,
+-- hence no IDENTITY column.
+
+DROP TABLE demo.Accounts IF EXISTS;
+CREATE TABLE demo.Accounts (id BIGINT PRIMARY KEY, name STRING, balance INT);
+CREATE INDEX idx_accounts_balance_id ON demo.Accounts (balance, id);
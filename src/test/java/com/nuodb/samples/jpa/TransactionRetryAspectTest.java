@@ -0,0 +1,129 @@
+package com.nuodb.samples.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.nuodb.samples.SpringBootJpaDemo;
+
+/**
+ * Simulates NuoDB write conflicts with H2 row lock timeouts: a second
+ * connection locks an account's row, so {@link AccountService#credit(long, int)}
+ * times out waiting for it (SQL state {@code HYT00}, made retryable for this
+ * test) until the lock is released.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = SpringBootJpaDemo.class, webEnvironment = SpringBootTest.WebEnvironment.NONE, //
+		properties = { "spring.datasource.url=jdbc:h2:mem:retrytest;LOCK_TIMEOUT=100;"
+				+ "INIT=CREATE SCHEMA IF NOT EXISTS demo", //
+				"demo.warmup.enabled=false", //
+				"demo.retry.sql-states=40001,40P01,HYT00", //
+				"demo.retry.max-attempts=10", //
+				"demo.retry.initial-backoff-ms=10", //
+				"demo.retry.max-backoff-ms=50" })
+public class TransactionRetryAspectTest {
+
+	@Autowired
+	private AccountService accountService;
+
+	@Autowired
+	private TransactionRetryAspect transactionRetryAspect;
+
+	@Autowired
+	private DataSource dataSource;
+
+	private JdbcTemplate jdbcTemplate;
+
+	private long id;
+
+	@Before
+	public void setUp() {
+		jdbcTemplate = new JdbcTemplate(dataSource);
+		jdbcTemplate.update("INSERT INTO demo.Accounts (name, balance) VALUES ('Retry Test', 100)");
+		id = jdbcTemplate.queryForObject("SELECT MAX(id) FROM demo.Accounts", Long.class);
+	}
+
+	@Test
+	public void creditIsRetriedUntilLockIsReleased() throws Exception {
+		long retriesBefore = stat("credit", "retries");
+		Connection locker = lockAccount(id);
+
+		Thread releaser = new Thread(() -> {
+			try {
+				Thread.sleep(500); // Several lock timeouts
+				locker.rollback();
+				locker.close();
+			} catch (InterruptedException | SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		releaser.start();
+
+		Account account = accountService.credit(id, 25);
+		releaser.join();
+
+		assertEquals(125, account.getBalance());
+		assertEquals(Integer.valueOf(125),
+				jdbcTemplate.queryForObject("SELECT balance FROM demo.Accounts WHERE id = ?", Integer.class, id));
+		assertTrue("credit should have been retried", stat("credit", "retries") > retriesBefore);
+	}
+
+	@Test
+	public void conflictIsRethrownWhenAttemptsRunOut() throws Exception {
+		long exhaustedBefore = stat("debit", "exhausted");
+
+		try (Connection locker = lockAccount(id)) {
+			try {
+				accountService.debit(id, 25);
+				fail("debit should not succeed while the account is locked");
+			} catch (ConcurrencyFailureException e) {
+				// Expected
+			} finally {
+				locker.rollback();
+			}
+		}
+
+		assertEquals(exhaustedBefore + 1, stat("debit", "exhausted"));
+		assertEquals(Integer.valueOf(100),
+				jdbcTemplate.queryForObject("SELECT balance FROM demo.Accounts WHERE id = ?", Integer.class, id));
+	}
+
+	/**
+	 * Lock an account's row from another connection. Roll back the connection to
+	 * release it.
+	 */
+	private Connection lockAccount(long id) throws SQLException {
+		Connection connection = dataSource.getConnection();
+		connection.setAutoCommit(false);
+
+		try (PreparedStatement statement = connection
+				.prepareStatement("UPDATE demo.Accounts SET balance = balance WHERE id = ?")) {
+			statement.setLong(1, id);
+			statement.executeUpdate();
+		}
+
+		return connection;
+	}
+
+	@SuppressWarnings("unchecked")
+	private long stat(String method, String name) {
+		Map<String, Long> stats = (Map<String, Long>) transactionRetryAspect.stats().get(method);
+		return stats == null ? 0 : stats.get(name);
+	}
+}